@@ -0,0 +1,7 @@
+/**
+ * Supplies the sequence of pieces for a {@link State}
+ */
+interface PieceSource {
+	//returns 0 to N_PIECES-1
+	int nextPiece();
+}
@@ -1,11 +1,35 @@
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.WeakReference;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.Random;
+import java.util.zip.CRC32;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 public class PlayerSkeleton {
 
@@ -19,12 +43,57 @@ public class PlayerSkeleton {
     private static boolean isMetaOptimizing = false;
     private static boolean isTraining = false;
     private static boolean isHeadless = false;
+    // play headless games and report the player's throughput and latency instead of playing one game
+    private static boolean isBenchmarking = false;
+    // games the benchmark measures, plays first to warm up, and threads it plays them on
+    private static int benchGames = 100;
+    private static int benchWarmupGames = 10;
+    private static int benchThreads = 1;
+    // file the game is recorded to, null to not record it
+    private static String recordFile = null;
+    // recording to replay instead of playing, and the turn to replay it from
+    private static String replayFile = null;
+    private static int replayTurn = 0;
+    // update and resubmit each particle as soon as its games finish instead of once per iteration
+    private static boolean isTrainingAsync = false;
+    // play the same seeded games with every particle in an iteration, null for unseeded games
+    private static Long trainingSeed = null;
+    // race the particles in each iteration instead of playing all of their games
+    private static boolean isRacing = false;
+    // carry on from the last checkpoint instead of starting a new swarm
+    private static boolean isResuming = false;
+    // port the training coordinator hands out games to worker JVMs on, 0 to play them in this JVM
+    private static int coordinatorPort = 0;
+    // host:port of the coordinator to play games for, null when not a worker
+    private static String coordinatorAddress = null;
+    // number of sub-swarms trained as an IslandSwarm, 1 for a single swarm
+    private static int numIslands = 1;
+    // candidate PSO parameters meta optimization runs at the same time in each iteration, 1 to run one at a time
+    private static int metaParallelism = 1;
+    // optimizer to train with: pso, ce for noisy cross-entropy or cma for CMA-ES
+    private static String optimizerName = "pso";
+    // compute all features in one pass with FusedEvaluator instead of running each Feature
+    private static boolean isUsingFusedEvaluator = true;
+    // look board features up in FeatureCache.shared() before computing them, pays off when computing them is
+    // expensive
+    private static boolean isUsingFeatureCache = false;
 
 //    private static String TRAINED_WEIGHTS = "trained_weights.txt";
     private static String LOG_FILE = "./mo_parameters_log.txt";
     
     private ArrayList<Feature> features = new ArrayList<>();
 
+    // one scratch board per player, every candidate move is applied to it, evaluated and undone
+    private StateCopy scratch = new StateCopy();
+
+    private FusedEvaluator evaluator = new FusedEvaluator();
+
+    // feature values of the board being evaluated
+    private double[] featureValues = new double[NUM_FEATURES];
+
+    // boards evaluated since TrainingMetrics last took them, a plain field so pickMove writes nothing shared
+    private long boardsEvaluated = 0;
+
     // weights for each feature
     private double[] weights = {-5.194814083947793,
                                 5.53478180043909,
@@ -44,6 +113,16 @@ public class PlayerSkeleton {
     private static double socialParameter;
     private static double cognitiveParameter;
 
+    // the rest of the state of Meta Optimization, kept here so it can be checkpointed
+    // bounds for the hypercube d
+    private static int swarmBound;
+    private static double inertiaBound;
+    private static double socialParameterBound;
+    private static double cognitiveParameterBound;
+    // -1 while the first PSO sets the globalBest value
+    private static int metaIteration;
+    private static SwarmRandom metaRandom;
+
 
     // Constructor, add features
     PlayerSkeleton() {
@@ -60,50 +139,115 @@ public class PlayerSkeleton {
 
     //implement this function to have a working system
     // The best move is chosen if the state s has the highest utility
-    private int pickMove(State s, int[][] legalMoves) {
+    int pickMove(State s, int[][] legalMoves) {
         int bestMove = 0;
         double maxUtility = Integer.MIN_VALUE;
 
+        int evaluated = 0;
+        // only FeatureCache reads the hashes
+        scratch.setHashing(isUsingFeatureCache);
+        scratch.copyFrom(s);
         for (int i = 0; i < legalMoves.length; i++) {
-            StateCopy sCopy = new StateCopy(s);
-            sCopy.makeMove(i);
+            scratch.makeMove(i);
             // ignore the move if it lost
-            if (sCopy.hasLost()) {
-                continue;
-            }
-            double currUtility = valueFunction(sCopy);
-            if (maxUtility < currUtility) {
-                maxUtility = currUtility;
-                bestMove = i;
+            if (!scratch.hasLost()) {
+                double currUtility = valueFunction(scratch);
+                evaluated++;
+                if (maxUtility < currUtility) {
+                    maxUtility = currUtility;
+                    bestMove = i;
+                }
             }
+            scratch.undoMove();
         }
+        boardsEvaluated += evaluated;
         return bestMove;
     }
 
+    // the boards evaluated since the last call
+    long takeBoardsEvaluated() {
+        long evaluated = boardsEvaluated;
+        boardsEvaluated = 0;
+        return evaluated;
+    }
+
     // Our main utility function F(s)
     // Returns the utility of the State s
     private double valueFunction(StateCopy s) {
+        if (isUsingFeatureCache) {
+            computeCachedFeatures(s, featureValues);
+        } else {
+            computeFeatures(s, featureValues);
+        }
         double value = 0;
+        for (int i = 0; i < NUM_FEATURES; i++) {
+            value += weights[i] * featureValues[i];
+        }
+
+        return value;
+    }
+
+    private void computeFeatures(StateCopy s, double[] out) {
+        if (isUsingFusedEvaluator) {
+            evaluator.computeFeatures(s, out);
+            return;
+        }
         int i = 0;
         for (Feature feature : features) {
-            value += weights[i++] * feature.run(s);
+            out[i++] = feature.run(s);
         }
+    }
 
-        return value;
+    // The features of the board are shared by every move and every set of weights that reach it,
+    // only the features of the move itself have to be computed on a hit
+    private void computeCachedFeatures(StateCopy s, double[] out) {
+        FeatureCache cache = FeatureCache.shared();
+        long key = cache.keyOf(s);
+        if (cache.get(key, out)) {
+            evaluator.computeMoveFeatures(s, out);
+        } else {
+            computeFeatures(s, out);
+            cache.put(key, out);
+        }
     }
 
     // This is the real main(), so you can run non-static;
     private void execute() {
-        if (isMetaOptimizing){
+        if (coordinatorAddress != null) {
+            // the worker's games are queued on its coordinator
+            TrainingMetrics.INSTANCE.start(null);
+            String[] address = coordinatorAddress.split(":");
+            GameWorker.run(address[0], Integer.parseInt(address[1]), Runtime.getRuntime().availableProcessors());
+        } else if (isBenchmarking) {
+            new ThroughputBench(benchGames, benchWarmupGames, benchThreads,
+                    trainingSeed == null ? SeededPieceSource.randomSeed() : trainingSeed, PSO.BOARD_ROWS,
+                    PSO.BOARD_COLS, PSO.MAX_MOVES > 0 ? PSO.MAX_MOVES : ThroughputBench.DEFAULT_MAX_MOVES).run();
+        } else if (replayFile != null) {
+            GameReplayer.replay(new File(replayFile), replayTurn);
+        } else if (isMetaOptimizing){
+           TrainingMetrics.INSTANCE.start(PSO.sharedExecutor());
            runMetaOptimzation();
         } else if (!isTraining) {
-            State s = new State();
+            State s = trainingSeed == null ? new State() : new State(trainingSeed);
             if (!isHeadless) {
                 new TFrame(s);
             }
+            GameRecorder recorder = null;
+            if (recordFile != null) {
+                try {
+                    recorder = new GameRecorder(s, new FileOutputStream(recordFile));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+            }
             PlayerSkeleton p = new PlayerSkeleton();
             while (!s.hasLost()) {
-                s.makeMove(p.pickMove(s, s.legalMoves()));
+                int move = p.pickMove(s, s.legalMoves());
+                if (recorder != null) {
+                    recorder.record(move);
+                }
+                s.makeMove(move);
                 if (!isHeadless) {
                     s.draw();
                     s.drawNext(0, 0);
@@ -116,78 +260,245 @@ public class PlayerSkeleton {
             }
 
             System.out.println("You have completed " + s.getRowsCleared() + " rows.");
-        } else {
-            PSO swarm = new PSO();
+            if (recorder != null) {
+                try {
+                    recorder.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        } else if (!optimizerName.equals("pso")) {
+            TrainingMetrics.INSTANCE.start(PSO.sharedExecutor());
+            SeedSequence seeds = trainingSeed == null ? null : new SeedSequence(trainingSeed);
+            Random random = new SwarmRandom(seeds == null ? SeededPieceSource.randomSeed() : seeds.swarmSeed());
+            Optimizer optimizer = optimizerName.equals("ce") ? new CrossEntropyOptimizer(NUM_FEATURES, random)
+                    : new CmaEsOptimizer(NUM_FEATURES, random);
+            GameEvaluator evaluator = new GameEvaluator(PSO.sharedExecutor());
+            JobServer jobServer = null;
+            if (coordinatorPort > 0) {
+                try {
+                    jobServer = new JobServer(coordinatorPort);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+                evaluator.useWorkers(jobServer);
+            }
+            new OptimizerTrainer(optimizer, evaluator, seeds).run(PSO.NUM_ITERATIONS);
+            if (jobServer != null) {
+                jobServer.close();
+            }
+        } else if (numIslands > 1) {
+            // the islands are neither checkpointed nor asynchronous, they only wait for each other to migrate. Each
+            // queues its games on a pool of its own, so there is no one queue to report
+            TrainingMetrics.INSTANCE.start(null);
+            IslandSwarm swarm = new IslandSwarm(numIslands, trainingSeed);
+            if (isRacing) {
+                swarm.useRacing();
+            }
+            JobServer jobServer = null;
+            if (coordinatorPort > 0) {
+                try {
+                    jobServer = new JobServer(coordinatorPort);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+                swarm.useWorkers(jobServer);
+            }
             swarm.run();
+            if (jobServer != null) {
+                jobServer.close();
+            }
+        } else {
+            TrainingMetrics.INSTANCE.start(PSO.sharedExecutor());
+            Checkpointer checkpointer = new Checkpointer(PSO.CHECKPOINT_FILE);
+            PSO swarm = trainingSeed == null ? new PSO() : new PSO(trainingSeed);
+            if (isRacing) {
+                swarm.useRacing();
+            }
+            if (isResuming) {
+                Checkpointer.Checkpoint checkpoint = checkpointer.load();
+                // a checkpoint of meta optimization holds a swarm with other parameters
+                if (checkpoint != null && checkpoint.metaState == null && checkpoint.swarmState != null) {
+                    swarm.restore(checkpoint.swarmState);
+                }
+            }
+            swarm.setCheckpointer(checkpointer);
+            JobServer jobServer = null;
+            if (coordinatorPort > 0) {
+                try {
+                    jobServer = new JobServer(coordinatorPort);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+                swarm.useWorkers(jobServer);
+            }
+            if (isTrainingAsync) {
+                swarm.runAsync();
+            } else {
+                swarm.run();
+            }
+            checkpointer.close();
+            if (jobServer != null) {
+                jobServer.close();
+            }
         }
     }
 
     // training method for our swarm particles
     // Returns rows cleared by using particle's position as weights for utility function
     static int train(State s, PlayerSkeleton p) {
+        TrainingMetrics.Game game = TrainingMetrics.INSTANCE.startGame(s, p);
         while(!s.hasLost()) {
             s.makeMove(p.pickMove(s, s.legalMoves()));
+            if ((s.getTurnNumber() & (TrainingMetrics.FLUSH_MOVES - 1)) == 0) {
+                game.flush(s, p);
+            }
         }
+        game.finish(s, p);
         return s.getRowsCleared();
     }
 
+    // training method for games too long to play out: stops after maxMoves moves or maxLines rows cleared,
+    // whichever comes first (0 for no limit), and estimates the rows the full game would have cleared
+    static GameScore train(State s, PlayerSkeleton p, int maxMoves, int maxLines) {
+        return train(s, p, maxMoves, maxLines, new SurvivalEstimator(s.getRows()));
+    }
+
+    // same as above with an estimator that was reset for this game
+    static GameScore train(State s, PlayerSkeleton p, int maxMoves, int maxLines, SurvivalEstimator survival) {
+        TrainingMetrics.Game game = TrainingMetrics.INSTANCE.startGame(s, p);
+        while (!s.hasLost() && (maxMoves <= 0 || s.getTurnNumber() < maxMoves)
+                && (maxLines <= 0 || s.getRowsCleared() < maxLines)) {
+            s.makeMove(p.pickMove(s, s.legalMoves()));
+            survival.record(ArrayHelper.max(s.getTop()));
+            if ((s.getTurnNumber() & (TrainingMetrics.FLUSH_MOVES - 1)) == 0) {
+                game.flush(s, p);
+            }
+        }
+        game.finish(s, p);
+        if (s.hasLost()) {
+            return new GameScore(s.getRowsCleared(), s.getRowsCleared(), s.getTurnNumber());
+        }
+        return new GameScore(s.getRowsCleared(), survival.estimate(s.getRowsCleared(), s.getTurnNumber()),
+                s.getTurnNumber());
+    }
+
     private void runMetaOptimzation() {
-        // bounds for the hypercube d
-        int swarmBound;
-        double inertiaBound;
-        double socialParameterBound;
-        double cognitiveParameterBound;
-        Random r = new Random();
-
-        // initialise x to a random solution in the search space.
-        // more specifically, we initialise parameters in PSO, namely swarm size, inertia, social and cognitive parameters
-
-        // swarm in [0, 200]
-        swarm = r.nextInt(199) + 1;
-        // for generating double values within a range: randomValue = rangeMin + (rangeMax - rangeMin) * r.nextDouble()
-        // inertia in [-2, 2]
-        inertia = -2.0 + 4.0 * r.nextDouble();
-        // social and cognitive parameters both in [-4, 4]
-        socialParameter = -4.0 + 8.0 * r.nextDouble();
-        cognitiveParameter = -4.0 + 8.0 * r.nextDouble();
-
-        // set the initial sampling range d to cover the entire search space
-        swarmBound = 200;
-        inertiaBound = 2.0;
-        socialParameterBound = 4.0;
-        cognitiveParameterBound = 4.0;
-
-        // we run PSO once to set the globalBest value
-        PSO firstPso = new PSO(swarm, inertia, socialParameter, cognitiveParameter);
-        globalBestScore = firstPso.run();
+        Checkpointer checkpointer = new Checkpointer(PSO.CHECKPOINT_FILE);
+        Checkpointer.Checkpoint checkpoint = isResuming ? checkpointer.load() : null;
+        // swarm size, inertia, social and cognitive parameters of each PSO being run, one after the other
+        double[] candidates;
+
+        if (checkpoint != null && checkpoint.metaState != null) {
+            candidates = readMetaState(checkpoint.metaState);
+            // the resumed swarm's checkpoints still belong to the meta optimization
+            checkpointer.resume(checkpoint.metaState);
+            System.out.println("Resuming meta optimization at iteration " + metaIteration);
+        } else {
+            checkpoint = null;
+            metaRandom = new SwarmRandom(trainingSeed == null ? SeededPieceSource.randomSeed() : trainingSeed);
+            Random r = metaRandom;
+
+            // initialise x to a random solution in the search space.
+            // more specifically, we initialise parameters in PSO, namely swarm size, inertia, social and cognitive parameters
+
+            // swarm in [0, 200]
+            swarm = r.nextInt(199) + 1;
+            // for generating double values within a range: randomValue = rangeMin + (rangeMax - rangeMin) * r.nextDouble()
+            // inertia in [-2, 2]
+            inertia = -2.0 + 4.0 * r.nextDouble();
+            // social and cognitive parameters both in [-4, 4]
+            socialParameter = -4.0 + 8.0 * r.nextDouble();
+            cognitiveParameter = -4.0 + 8.0 * r.nextDouble();
+
+            // set the initial sampling range d to cover the entire search space
+            swarmBound = 200;
+            inertiaBound = 2.0;
+            socialParameterBound = 4.0;
+            cognitiveParameterBound = 4.0;
+
+            // we run PSO once to set the globalBest value
+            metaIteration = -1;
+            candidates = new double[] {swarm, inertia, socialParameter, cognitiveParameter};
+        }
+
+        // runs the PSOs of one iteration, their games share PSO's executor
+        ExecutorService runner = Executors.newFixedThreadPool(metaParallelism);
 
         // until a termination criterion is met, repeat the following
-        for (int i = 0; i < NUM_ITERATIONS; i++) {
+        while (metaIteration < NUM_ITERATIONS) {
+            if (checkpoint == null) {
+                if (metaIteration >= 0) {
+                    candidates = new double[0];
+                    for (int i = 0; i < metaParallelism; i++) {
+                        candidates = concat(candidates, nextCandidate(metaRandom));
+                    }
+                }
+                // a new PSO starts, the checkpoint has no swarm until its first iteration
+                checkpointer.saveMetaState(writeMetaState(candidates));
+            }
 
-            // pick a random vector a~U(-d,d)
-            int randomSwarm = -1 * swarmBound + r.nextInt(swarmBound * 2 + 1);
-            double randomInertia = -1.0 * inertiaBound + (inertiaBound * 2) * r.nextDouble();
-            double randomSocialParameter = -1.0 * socialParameterBound + (socialParameterBound * 2)
-                    * r.nextDouble();
-            double randomCognitiveParameter = -1.0 * cognitiveParameterBound + (cognitiveParameterBound * 2)
-                    * r.nextDouble();
+            int[] scores = new int[candidates.length / 4];
+            if (scores.length == 1) {
+                PSO pso = new PSO((int) candidates[0], candidates[1], candidates[2], candidates[3]);
+                if (checkpoint != null && checkpoint.swarmState != null) {
+                    pso.restore(checkpoint.swarmState);
+                }
+                pso.setCheckpointer(checkpointer);
+                scores[0] = pso.run();
+            } else {
+                // the swarms running side by side are not checkpointed, a resumed iteration starts them over. They
+                // all read trained_weights.txt before any of them runs, and only the best one is written after
+                PSO[] swarms = new PSO[scores.length];
+                for (int i = 0; i < scores.length; i++) {
+                    swarms[i] = new PSO((int) candidates[i * 4], candidates[i * 4 + 1], candidates[i * 4 + 2],
+                            candidates[i * 4 + 3]);
+                    swarms[i].setWritingWeights(false);
+                }
+                List<Future<Integer>> futureList = new ArrayList<>();
+                for (PSO pso : swarms) {
+                    futureList.add(runner.submit(pso::run));
+                }
+                int bestSwarm = 0;
+                for (int i = 0; i < scores.length; i++) {
+                    try {
+                        scores[i] = futureList.get(i).get();
+                    } catch (InterruptedException | ExecutionException e) {
+                        e.printStackTrace();
+                    }
+                    if (scores[i] > scores[bestSwarm]) {
+                        bestSwarm = i;
+                    }
+                }
+                PSO.writeBestWeightsToFile(swarms[bestSwarm].getBestWeights());
+            }
+            checkpoint = null;
 
-            // add this to the current solution x to create the new potential solution
-            int swarmHere = Math.abs(swarm + randomSwarm);
-            double inertiaHere = inertia + randomInertia;
-            double socialParameterHere = socialParameter + randomSocialParameter;
-            double cognitiveParameterHere = cognitiveParameter + randomCognitiveParameter;
+            // the best of the candidates, the first one on a tie
+            int best = 0;
+            for (int i = 1; i < scores.length; i++) {
+                if (scores[i] > scores[best]) {
+                    best = i;
+                }
+            }
+            currBestScore = scores[best];
 
-            PSO pso = new PSO(swarmHere, inertiaHere, socialParameterHere, cognitiveParameterHere);
-            currBestScore = pso.run();
+            if (metaIteration < 0) {
+                globalBestScore = currBestScore;
+                metaIteration++;
+                continue;
+            }
 
             // if we get a more optimal value (i.e., more rows cleared
             if (currBestScore > globalBestScore) {
                 globalBestScore = currBestScore;
-                swarm = swarmHere;
-                inertia = inertiaHere;
-                socialParameter = socialParameterHere;
-                cognitiveParameter = cognitiveParameterHere;
+                swarm = (int) candidates[best * 4];
+                inertia = candidates[best * 4 + 1];
+                socialParameter = candidates[best * 4 + 2];
+                cognitiveParameter = candidates[best * 4 + 3];
             } else { // decrease the search range by multiplication with the factor q (also known as decreaseFactor)
                 swarmBound = (int) Math.ceil(swarmBound * decreaseFactor); // we get the ceiling
                 inertiaBound = inertiaBound * decreaseFactor;
@@ -196,7 +507,76 @@ public class PlayerSkeleton {
             }
 
             System.out.println("globalBest is now: " + globalBestScore);
-            writeToLogFile(i);
+            writeToLogFile(metaIteration);
+            metaIteration++;
+        }
+        runner.shutdown();
+        checkpointer.close();
+    }
+
+    private static double[] concat(double[] a, double[] b) {
+        double[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    // The next PSO parameters to try, around the current ones
+    private double[] nextCandidate(Random r) {
+        // pick a random vector a~U(-d,d)
+        int randomSwarm = -1 * swarmBound + r.nextInt(swarmBound * 2 + 1);
+        double randomInertia = -1.0 * inertiaBound + (inertiaBound * 2) * r.nextDouble();
+        double randomSocialParameter = -1.0 * socialParameterBound + (socialParameterBound * 2)
+                * r.nextDouble();
+        double randomCognitiveParameter = -1.0 * cognitiveParameterBound + (cognitiveParameterBound * 2)
+                * r.nextDouble();
+
+        // add this to the current solution x to create the new potential solution
+        return new double[] {Math.abs(swarm + randomSwarm),
+                             inertia + randomInertia,
+                             socialParameter + randomSocialParameter,
+                             cognitiveParameter + randomCognitiveParameter};
+    }
+
+    // State of the meta optimization for a checkpoint, taken after the candidates were drawn
+    private byte[] writeMetaState(double[] candidates) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(metaIteration);
+            out.writeLong(metaRandom.getState());
+            out.writeInt(globalBestScore);
+            out.writeInt(swarm);
+            out.writeDouble(inertia);
+            out.writeDouble(socialParameter);
+            out.writeDouble(cognitiveParameter);
+            out.writeInt(swarmBound);
+            out.writeDouble(inertiaBound);
+            out.writeDouble(socialParameterBound);
+            out.writeDouble(cognitiveParameterBound);
+            Checkpointer.writeDoubles(out, candidates);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // Restores the state of the meta optimization, returns the candidates of the PSOs that were running
+    private double[] readMetaState(byte[] metaState) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(metaState))) {
+            metaIteration = in.readInt();
+            metaRandom = new SwarmRandom(0);
+            metaRandom.setState(in.readLong());
+            globalBestScore = in.readInt();
+            swarm = in.readInt();
+            inertia = in.readDouble();
+            socialParameter = in.readDouble();
+            cognitiveParameter = in.readDouble();
+            swarmBound = in.readInt();
+            inertiaBound = in.readDouble();
+            socialParameterBound = in.readDouble();
+            cognitiveParameterBound = in.readDouble();
+            return Checkpointer.readDoubles(in);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
     }
 
@@ -218,16 +598,133 @@ public class PlayerSkeleton {
     }
 
     public static void main(String[] args) {
-        if (args.length > 1 && args[0].equals("-t")) {
+        if (Arrays.asList(args).contains("-t")) {
             isTraining = true;
         }
+        if (args.length > 0 && args[0].equals("meta")) {
+            // meta [-p n], searches the PSO parameters, n candidates at a time, see runMetaOptimzation
+            isMetaOptimizing = true;
+        }
+        if (args.length > 0 && args[0].equals("bench")) {
+            // bench [-n games] [-u warmup games] [-j threads], with -s, -b and -m for the games
+            isBenchmarking = true;
+        }
+        if (args.length > 1 && args[0].equals("replay")) {
+            // replay <file> [-k turn], seeks to the turn and replays the rest of a recorded game headless
+            replayFile = args[1];
+        }
+        int replayTurnIndex = Arrays.asList(args).indexOf("-k");
+        if (replayTurnIndex >= 0 && replayTurnIndex + 1 < args.length) {
+            replayTurn = Integer.parseInt(args[replayTurnIndex + 1]);
+        }
+        int recordIndex = Arrays.asList(args).indexOf("-f");
+        if (recordIndex >= 0 && recordIndex + 1 < args.length) {
+            // record the game to this file, see GameRecorder
+            recordFile = args[recordIndex + 1];
+        }
+        if (Arrays.asList(args).contains("-h")) {
+            isHeadless = true;
+        }
+        int gamesIndex = Arrays.asList(args).indexOf("-n");
+        if (gamesIndex >= 0 && gamesIndex + 1 < args.length) {
+            benchGames = Integer.parseInt(args[gamesIndex + 1]);
+        }
+        int warmupIndex = Arrays.asList(args).indexOf("-u");
+        if (warmupIndex >= 0 && warmupIndex + 1 < args.length) {
+            benchWarmupGames = Integer.parseInt(args[warmupIndex + 1]);
+        }
+        int threadsIndex = Arrays.asList(args).indexOf("-j");
+        if (threadsIndex >= 0 && threadsIndex + 1 < args.length) {
+            benchThreads = Integer.parseInt(args[threadsIndex + 1]);
+        }
+        if (Arrays.asList(args).contains("-a")) {
+            isTrainingAsync = true;
+        }
+        if (Arrays.asList(args).contains("-r")) {
+            isRacing = true;
+        }
+        int maxMovesIndex = Arrays.asList(args).indexOf("-m");
+        if (maxMovesIndex >= 0 && maxMovesIndex + 1 < args.length) {
+            PSO.MAX_MOVES = Integer.parseInt(args[maxMovesIndex + 1]);
+        }
+        int maxLinesIndex = Arrays.asList(args).indexOf("-l");
+        if (maxLinesIndex >= 0 && maxLinesIndex + 1 < args.length) {
+            PSO.MAX_LINES = Integer.parseInt(args[maxLinesIndex + 1]);
+        }
+        if (Arrays.asList(args).contains("-c")) {
+            isResuming = true;
+        }
+        if (isTrainingAsync && isResuming) {
+            // runAsync() has no iterations to checkpoint between, so there is nothing to resume it from
+            System.err.println("Usage: -a cannot be combined with -c");
+            System.exit(1);
+        }
+        int coordinatorIndex = Arrays.asList(args).indexOf("-d");
+        if (coordinatorIndex >= 0 && coordinatorIndex + 1 < args.length) {
+            coordinatorPort = Integer.parseInt(args[coordinatorIndex + 1]);
+        }
+        int workerIndex = Arrays.asList(args).indexOf("-w");
+        if (workerIndex >= 0 && workerIndex + 1 < args.length) {
+            coordinatorAddress = args[workerIndex + 1];
+        }
+        int boardIndex = Arrays.asList(args).indexOf("-b");
+        if (boardIndex >= 0 && boardIndex + 1 < args.length) {
+            // rows x columns of the training board, e.g. 12x10
+            String[] size = args[boardIndex + 1].split("x");
+            if (size.length != 2 || !size[0].matches("\\d+") || !size[1].matches("\\d+")
+                    || Integer.parseInt(size[0]) < State.MIN_ROWS || Integer.parseInt(size[0]) > State.MAX_ROWS
+                    || Integer.parseInt(size[1]) < State.MIN_COLS || Integer.parseInt(size[1]) > State.MAX_COLS) {
+                // every game would fail and score 0
+                System.err.println("Usage: -b RxC, between " + State.MIN_ROWS + "x" + State.MIN_COLS + " and "
+                        + State.MAX_ROWS + "x" + State.MAX_COLS);
+                System.exit(1);
+            }
+            PSO.BOARD_ROWS = Integer.parseInt(size[0]);
+            PSO.BOARD_COLS = Integer.parseInt(size[1]);
+        }
+        int islandsIndex = Arrays.asList(args).indexOf("-i");
+        if (islandsIndex >= 0 && islandsIndex + 1 < args.length) {
+            numIslands = Integer.parseInt(args[islandsIndex + 1]);
+        }
+        int migrationIndex = Arrays.asList(args).indexOf("-g");
+        if (migrationIndex >= 0 && migrationIndex + 1 < args.length) {
+            IslandSwarm.MIGRATION_INTERVAL = Integer.parseInt(args[migrationIndex + 1]);
+        }
+        int parallelismIndex = Arrays.asList(args).indexOf("-p");
+        if (parallelismIndex >= 0 && parallelismIndex + 1 < args.length) {
+            metaParallelism = Integer.parseInt(args[parallelismIndex + 1]);
+        }
+        int optimizerIndex = Arrays.asList(args).indexOf("-o");
+        if (optimizerIndex >= 0 && optimizerIndex + 1 < args.length) {
+            optimizerName = args[optimizerIndex + 1];
+            if (!Arrays.asList("pso", "ce", "cma").contains(optimizerName)) {
+                System.err.println("Usage: -o pso|ce|cma, unknown optimizer " + optimizerName);
+                System.exit(1);
+            }
+        }
+        int cacheIndex = Arrays.asList(args).indexOf("-x");
+        if (cacheIndex >= 0) {
+            // -x [megabytes], share computed board features between the players, see FeatureCache
+            isUsingFeatureCache = true;
+            if (cacheIndex + 1 < args.length && args[cacheIndex + 1].matches("\\d+")) {
+                FeatureCache.MEGABYTES = Integer.parseInt(args[cacheIndex + 1]);
+            }
+        }
+        int seedIndex = Arrays.asList(args).indexOf("-s");
+        if (seedIndex >= 0 && seedIndex + 1 < args.length) {
+            trainingSeed = Long.parseLong(args[seedIndex + 1]);
+        }
         PlayerSkeleton ps = new PlayerSkeleton();
         ps.execute();
     }
 
     // update the current weights of the PlayerSkeleton to the Particle's positions
     void updateWeights(double[] newWeights) {
-        weights = ArrayHelper.deepCopy(newWeights);
+        System.arraycopy(newWeights, 0, weights, 0, weights.length);
+    }
+
+    double[] getWeights() {
+        return weights;
     }
 
 }
@@ -240,11 +737,17 @@ public class PlayerSkeleton {
 @SuppressWarnings("Duplicates")
 class StateCopy {
 
+    // size of the board, the same as the State last copied
+    private int rows;
+    private int cols;
 
-    private static final int COLS = 10;
-    private static final int ROWS = 21;
-    private static final int N_PIECES = 7;
+    // mask of a row where every column is filled
+    private int fullRow;
 
+    // legal moves on a board cols wide, see PieceCatalog
+    private int[][][] legalMoves;
+    private int[][] moveOrient;
+    private int[][] moveSlot;
 
     private boolean lost;
 
@@ -264,83 +767,113 @@ class StateCopy {
     // the previous top[] to calculate average height increase
     private int[] previousTop;
 
+    // the filled cells of field as bitmasks, bit c of rowMasks[r] and bit r of colMasks[c] for the cell (r, c)
+    private int[] rowMasks;
+    private int[] colMasks;
+
 
     //number of next piece
     private int nextPiece;
 
+    // board features of field, updated by every move
+    private IncrementalFeatures features;
+
+    // Zobrist hash of the filled cells and of their mirror image, updated by every move while isHashing
+    private long hash;
+    private long mirrorHash;
+    private boolean isHashing = true;
 
-    //all legal moves - first index is piece type - then a futureList of 2-length arrays
-    private static int[][][] legalMoves = new int[N_PIECES][][];
 
     //indices for legalMoves
     private static final int ORIENT = 0;
     private static final int SLOT = 1;
 
-    //possible orientations for a given piece type
-    private static int[] pOrients;
+    // what the last makeMove changed, so undoMove can put the board back without a fresh copy
+    private UndoFrame undo;
 
-    //the next several arrays define the piece vocabulary in detail
-    //width of the pieces [piece ID][orientation]
-    private static int[][] pWidth;
-
-    //height of the pieces [piece ID][orientation]
-    private static int[][] pHeight;
+    // Scratch constructor, call copyFrom before making moves
+    StateCopy() {
+        resize(State.ROWS, State.COLS);
+    }
 
-    private static int[][][] pBottom;
-    private static int[][][] pTop;
+    StateCopy(State toCopy) {
+        copyFrom(toCopy);
+    }
 
+    // Allocate the arrays for a board of the given size
+    private void resize(int rows, int cols) {
+        this.rows = rows;
+        this.cols = cols;
+        this.fullRow = (1 << cols) - 1;
+        this.legalMoves = PieceCatalog.LEGAL_MOVES[cols];
+        this.moveOrient = PieceCatalog.MOVE_ORIENT[cols];
+        this.moveSlot = PieceCatalog.MOVE_SLOT[cols];
+        this.field = new int[rows][cols];
+        this.top = new int[cols];
+        this.previousTop = new int[cols];
+        this.rowMasks = new int[rows];
+        this.colMasks = new int[cols];
+        this.features = new IncrementalFeatures(rows, cols);
+        this.undo = new UndoFrame(rows, cols);
+    }
 
-    StateCopy(State toCopy) {
+    // Overwrite this copy with the given State, reusing the arrays of this copy if the board is the same size
+    void copyFrom(State toCopy) {
+        if (field == null || rows != toCopy.getRows() || cols != toCopy.getCols()) {
+            resize(toCopy.getRows(), toCopy.getCols());
+        }
         this.lost = toCopy.hasLost();
         this.turn = toCopy.getTurnNumber();
         this.cleared = toCopy.getRowsCleared();
+        this.rowsCleared = 0;
 
-        this.field = ArrayHelper.deepCopy(toCopy.getField());
-        this.top = ArrayHelper.deepCopy(toCopy.getTop());
-        this.previousTop = ArrayHelper.deepCopy(toCopy.getTop());   // nothing will change this once its init
+        ArrayHelper.copyInto(toCopy.getField(), field);
+        System.arraycopy(toCopy.getTop(), 0, top, 0, cols);
+        System.arraycopy(toCopy.getTop(), 0, previousTop, 0, cols);
 
         this.nextPiece = toCopy.getNextPiece();
 
-        pOrients = State.getpOrients();
-        pWidth = State.getpWidth();
-        pHeight = State.getpHeight();
-        pBottom = State.getpBottom();
-        pTop = State.getpTop();
-
-        initLegalMoves();
+        initMasks();
+        features.recomputeAll(rowMasks, colMasks, top);
+        rehash();
+    }
 
+    private void rehash() {
+        if (!isHashing) {
+            return;
+        }
+        hash = Zobrist.hash(rowMasks, cols, false);
+        mirrorHash = Zobrist.hash(rowMasks, cols, true);
     }
 
-    //initialize legalMoves
-    private void initLegalMoves() {
-        //for each piece type
-        for(int i = 0; i < N_PIECES; i++) {
-            //figure number of legal moves
-            int n = 0;
-            for(int j = 0; j < pOrients[i]; j++) {
-                //number of locations in this orientation
-                n += COLS+1-pWidth[i][j];
-            }
-            //allocate space
-            legalMoves[i] = new int[n][2];
-            //for each orientation
-            n = 0;
-            for(int j = 0; j < pOrients[i]; j++) {
-                //for each slot
-                for(int k = 0; k < COLS+1-pWidth[i][j];k++) {
-                    legalMoves[i][n][ORIENT] = j;
-                    legalMoves[i][n][SLOT] = k;
-                    n++;
+    private void initMasks() {
+        for (int c = 0; c < cols; c++) {
+            colMasks[c] = 0;
+        }
+        for (int r = 0; r < rows; r++) {
+            int mask = 0;
+            for (int c = 0; c < cols; c++) {
+                if (field[r][c] != 0) {
+                    mask |= 1 << c;
+                    colMasks[c] |= 1 << r;
                 }
             }
+            rowMasks[r] = mask;
         }
-
     }
 
     int[][] getField() {
         return field;
     }
 
+    int getRows() {
+        return rows;
+    }
+
+    int getCols() {
+        return cols;
+    }
+
     int[] getTop() {
         return top;
     }
@@ -349,6 +882,36 @@ class StateCopy {
         return previousTop;
     }
 
+    int[] getRowMasks() {
+        return rowMasks;
+    }
+
+    int[] getColumnMasks() {
+        return colMasks;
+    }
+
+    IncrementalFeatures getFeatures() {
+        return features;
+    }
+
+    // Keep the hashes up to date or leave them stale, a board that is not looked up in FeatureCache does not
+    // need them. Turning hashing on recomputes them
+    void setHashing(boolean isHashing) {
+        if (isHashing && !this.isHashing) {
+            this.isHashing = true;
+            rehash();
+        }
+        this.isHashing = isHashing;
+    }
+
+    long getHash() {
+        return hash;
+    }
+
+    long getMirrorHash() {
+        return mirrorHash;
+    }
+
     boolean hasLost() {
         return lost;
     }
@@ -373,7 +936,7 @@ class StateCopy {
 
     //make a move based on the move index - its order in the legalMoves futureList
     void makeMove(int move) {
-        makeMove(legalMoves[nextPiece][move]);
+        makeMove(moveOrient[nextPiece][move], moveSlot[nextPiece][move]);
     }
 
     //make a move based on an array of orient and slot
@@ -383,166 +946,834 @@ class StateCopy {
 
     //returns false if you lose - true otherwise
     private boolean makeMove(int orient, int slot) {
+        int placement = PieceCatalog.placement(nextPiece, orient);
+        int base = placement * PieceCatalog.MAX_WIDTH;
+        int width = PieceCatalog.WIDTH[placement];
+        int pieceHeight = PieceCatalog.HEIGHT[placement];
+
+        undo.save(this, placement, slot);
         turn++;
-        //height if the first column makes contact
-        int height = top[slot]-pBottom[nextPiece][orient][0];
-        //for each column beyond the first in the piece
-        for(int c = 1; c < pWidth[nextPiece][orient];c++) {
-            height = Math.max(height,top[slot+c]-pBottom[nextPiece][orient][c]);
-        }
+        int height = LandingTable.landingHeight(placement, top, slot);
 
         //check if game ended
-        if(height+pHeight[nextPiece][orient] >= ROWS) {
+        if(height+pieceHeight >= rows) {
             lost = true;
             return false;
         }
 
 
         //for each column in the piece - fill in the appropriate blocks
-        for(int i = 0; i < pWidth[nextPiece][orient]; i++) {
+        for(int i = 0; i < width; i++) {
 
             //from bottom to top of brick
-            for(int h = height+pBottom[nextPiece][orient][i]; h < height+pTop[nextPiece][orient][i]; h++) {
+            for(int h = height+PieceCatalog.BOTTOM[base+i]; h < height+PieceCatalog.TOP[base+i]; h++) {
                 field[h][i+slot] = turn;
+                if (isHashing) {
+                    hash ^= Zobrist.cell(h, i+slot);
+                    mirrorHash ^= Zobrist.mirrorCell(h, i+slot, cols);
+                }
             }
+            colMasks[slot+i] |= PieceCatalog.COLUMN_MASKS[base+i] << height;
+        }
+        int rowBase = placement * PieceCatalog.MAX_HEIGHT;
+        for (int h = 0; h < pieceHeight; h++) {
+            rowMasks[height+h] |= PieceCatalog.ROW_MASKS[rowBase+h] << slot;
         }
 
         //adjust top
-        for(int c = 0; c < pWidth[nextPiece][orient]; c++) {
-            top[slot+c]=height+pTop[nextPiece][orient][c];
+        for(int c = 0; c < width; c++) {
+            top[slot+c]=height+PieceCatalog.TOP[base+c];
         }
+        undo.placed(this, height);
+        features.rowsChanged(rowMasks, height, height+pieceHeight-1);
 
         //check for full rows - starting at the top
-        for(int r = height+pHeight[nextPiece][orient]-1; r >= height; r--) {
-            //check all columns in the row
-            boolean full = true;
-            for (int c = 0; c < COLS; c++) {
-                if (field[r][c] == 0) {
-                    full = false;
-                    break;
-                }
-            }
+        int clearedBefore = rowsCleared;
+        for(int r = height+pieceHeight-1; r >= height; r--) {
             //if the row was full - remove it and slide above stuff down
-            if (full) {
+            if (rowMasks[r] == fullRow) {
+                undo.clearing(field, r);
+                features.rowCleared(r);
                 rowsCleared++;
                 cleared++;
+                System.arraycopy(rowMasks, r + 1, rowMasks, r, rows - 1 - r);
+                rowMasks[rows - 1] = 0;
+                int below = (1 << r) - 1;
                 //for each column
-                for (int c = 0; c < COLS; c++) {
+                for (int c = 0; c < cols; c++) {
 
                     //slide down all bricks
                     for (int i = r; i < top[c]; i++) {
                         field[i][c] = field[i + 1][c];
                     }
-                    //lower the top
-                    top[c]--;
-                    while (top[c] >= 1 && field[top[c] - 1][c] == 0) top[c]--;
+                    colMasks[c] = (colMasks[c] & below) | ((colMasks[c] >>> 1) & ~below);
+                    //lower the top to just above the highest filled cell
+                    top[c] = 32 - Integer.numberOfLeadingZeros(colMasks[c]);
                 }
             }
         }
+
+        // a clear moves every column, otherwise only the piece's columns changed
+        if (rowsCleared > clearedBefore) {
+            features.columnsChanged(colMasks, top, 0, cols-1);
+            rehash();
+        } else {
+            features.columnsChanged(colMasks, top, slot, slot+width-1);
+        }
         return true;
     }
 
-}
+    // Revert the last makeMove, only one move can be undone
+    void undoMove() {
+        undo.restore(this);
+    }
 
+    /**
+     * Everything a single makeMove changes: the scalars, the old top[], where the piece landed and the
+     * rows it cleared. Restoring from it costs the piece's cells plus the cleared rows, not a whole field copy
+     */
+    private static class UndoFrame {
+        private boolean lost;
+        private int turn;
+        private int cleared;
+        private int rowsCleared;
+        private long hash;
+        private long mirrorHash;
+        private int[] top;
+        private int[] rowMasks;
+        private int[] colMasks;
+        private IncrementalFeatures features;
+
+        private int placement;
+        private int slot;
+        private boolean isPlaced;
+        private int height;
+        // every row from here up was empty after the piece was placed
+        private int highestRow;
+
+        // cleared rows in the order they were cleared, with their contents before the clear
+        private int numCleared;
+        private int[] clearedRows = new int[4];
+        private int[][] clearedContents;
+
+        UndoFrame(int rows, int cols) {
+            top = new int[cols];
+            rowMasks = new int[rows];
+            colMasks = new int[cols];
+            features = new IncrementalFeatures(rows, cols);
+            clearedContents = new int[4][cols];
+        }
 
-/**
- * =============================
- * Utility class to clone arrays
- * =============================
- */
-class ArrayHelper {
-    // Helper method to clone 2d int array instead of reference
-    static int[][] deepCopy(int[][] src) {
-        int length = src.length;
-        int[][] dest = new int[length][src[0].length];
-        for (int i = 0; i < length; i++) {
-            System.arraycopy(src[i], 0, dest[i], 0, src[i].length);
+        void save(StateCopy s, int placement, int slot) {
+            lost = s.lost;
+            turn = s.turn;
+            cleared = s.cleared;
+            rowsCleared = s.rowsCleared;
+            if (s.isHashing) {
+                hash = s.hash;
+                mirrorHash = s.mirrorHash;
+            }
+            System.arraycopy(s.top, 0, top, 0, s.cols);
+            System.arraycopy(s.rowMasks, 0, rowMasks, 0, s.rows);
+            System.arraycopy(s.colMasks, 0, colMasks, 0, s.cols);
+            features.copyFrom(s.features);
+            this.placement = placement;
+            this.slot = slot;
+            isPlaced = false;
+            numCleared = 0;
         }
-        return dest;
-    }
 
-    // Overloaded helper method to clone 1d int array instead of reference
-    static int[] deepCopy(int[] src) {
-        return src.clone();
-    }
+        void placed(StateCopy s, int height) {
+            isPlaced = true;
+            this.height = height;
+            highestRow = 0;
+            for (int t : s.top) {
+                highestRow = Math.max(highestRow, t);
+            }
+        }
 
-    // Helper method to clone 2d int array instead of reference
-    static double[][] deepCopy(double[][] src) {
-        int length = src.length;
-        double[][] dest = new double[length][src[0].length];
-        for (int i = 0; i < length; i++) {
-            System.arraycopy(src[i], 0, dest[i], 0, src[i].length);
+        void clearing(int[][] field, int row) {
+            clearedRows[numCleared] = row;
+            System.arraycopy(field[row], 0, clearedContents[numCleared], 0, field[row].length);
+            numCleared++;
         }
-        return dest;
-    }
 
-    // Overloaded helper method to clone 1d int array instead of reference
-    static double[] deepCopy(double[] src) {
-        return src.clone();
+        void restore(StateCopy s) {
+            int[][] field = s.field;
+            int cols = s.cols;
+            if (isPlaced) {
+                // put the cleared rows back, last cleared first, sliding everything above up again
+                for (int k = numCleared - 1; k >= 0; k--) {
+                    int row = clearedRows[k];
+                    for (int r = highestRow - 1; r > row; r--) {
+                        System.arraycopy(field[r - 1], 0, field[r], 0, cols);
+                    }
+                    System.arraycopy(clearedContents[k], 0, field[row], 0, cols);
+                }
+
+                // take the piece back out
+                int base = placement * PieceCatalog.MAX_WIDTH;
+                for (int i = 0; i < PieceCatalog.WIDTH[placement]; i++) {
+                    for (int h = height + PieceCatalog.BOTTOM[base + i]; h < height + PieceCatalog.TOP[base + i]; h++) {
+                        field[h][i + slot] = 0;
+                    }
+                }
+            }
+
+            System.arraycopy(top, 0, s.top, 0, cols);
+            // the saved masks and features become the board's, the board's become the next spares
+            int[] swapRows = s.rowMasks;
+            s.rowMasks = rowMasks;
+            rowMasks = swapRows;
+            int[] swapCols = s.colMasks;
+            s.colMasks = colMasks;
+            colMasks = swapCols;
+            IncrementalFeatures swap = s.features;
+            s.features = features;
+            features = swap;
+            s.lost = lost;
+            s.turn = turn;
+            s.cleared = cleared;
+            s.rowsCleared = rowsCleared;
+            if (s.isHashing) {
+                s.hash = hash;
+                s.mirrorHash = mirrorHash;
+            }
+        }
     }
-}
 
-/**
- * ==========================================================
- * Interface to encapsulate features used for the Tetris AI
- * ==========================================================
- */
-interface Feature {
-    double run(StateCopy s);
 }
 
 /**
- * Returns the number of rows cleared by the piece
+ * ==================================================================================================
+ * Per-column and per-row parts of the board features of a {@link StateCopy}, kept up to date as moves
+ * are made. A move only recomputes the parts of the columns and rows it touched (every column when it
+ * clears a row) instead of scanning the whole field for every candidate
+ * ==================================================================================================
  */
-class RowsClearedFeature implements Feature {
+class IncrementalFeatures {
+    // row transitions of an empty row: the empty cells next to both walls
+    private static final int EMPTY_ROW_TRANSITIONS = 2;
+
+    private int rows;
+    private int cols;
+
+    // parts of each feature, see the matching Feature for the definitions
+    private int[] holes;
+    private int[] colTransitions;
+    private int[] wells;
+    private int[] rowTransitions;
+    // |top[c] - top[c + 1]|
+    private int[] heightDiffs;
+
+    private int totalHoles;
+    private int totalColTransitions;
+    private int totalWells;
+    private int totalRowTransitions;
+    private int totalAbsDiff;
+
+    IncrementalFeatures(int rows, int cols) {
+        this.rows = rows;
+        this.cols = cols;
+        holes = new int[cols];
+        colTransitions = new int[cols];
+        wells = new int[cols];
+        rowTransitions = new int[rows];
+        heightDiffs = new int[cols - 1];
+    }
 
-    public double run(StateCopy s) {
-        return s.getRowsCleared();
+    int getHoles() {
+        return totalHoles;
     }
-}
 
-/**
- * Returns the maximum height of the board when the piece is placed
- */
-class MaxHeightFeature implements Feature {
+    int getColumnTransitions() {
+        return totalColTransitions;
+    }
 
-    public double run(StateCopy s) {
-        return getMaxHeight(s);
+    int getWellSum() {
+        return totalWells;
     }
 
-    private int getMaxHeight(StateCopy s) {
-        int[] top = s.getTop();
-        int maxHeight = 0;
+    int getRowTransitions() {
+        return totalRowTransitions;
+    }
 
-        for (int height : top) {
-            if (maxHeight < height) {
-                maxHeight = height;
+    int getAbsoluteDiff() {
+        return totalAbsDiff;
+    }
+
+    void recomputeAll(int[] rowMasks, int[] colMasks, int[] top) {
+        totalRowTransitions = 0;
+        for (int r = 0; r < rows; r++) {
+            rowTransitions[r] = 0;
+        }
+        rowsChanged(rowMasks, 0, rows - 1);
+
+        totalHoles = 0;
+        totalColTransitions = 0;
+        totalWells = 0;
+        totalAbsDiff = 0;
+        for (int c = 0; c < cols; c++) {
+            holes[c] = 0;
+            colTransitions[c] = 0;
+            wells[c] = 0;
+            if (c < cols - 1) {
+                heightDiffs[c] = 0;
             }
         }
-        return maxHeight;
+        columnsChanged(colMasks, top, 0, cols - 1);
     }
-}
-
-/**
- * Returns the average height of the board when the piece is placed
- * Average height is calculated by the total sum of the column heights divided by number of columns
- */
-class AvgHeightFeature implements Feature {
 
-    public double run(StateCopy s) {
-        int[] prevTop = s.getPreviousTop();
-        int[] top = s.getTop();
+    // Columns from..to have new cells or a new top
+    void columnsChanged(int[] colMasks, int[] top, int from, int to) {
+        for (int c = from; c <= to; c++) {
+            int columnHoles = MaskKernels.holes(colMasks[c], top[c]);
+            totalHoles += columnHoles - holes[c];
+            holes[c] = columnHoles;
 
-        int length = top.length;
-        double heightIncrease = 0;
+            int transitions = MaskKernels.columnTransitions(colMasks[c], rows);
+            totalColTransitions += transitions - colTransitions[c];
+            colTransitions[c] = transitions;
+        }
+        // wells also depend on the columns on each side
+        for (int c = Math.max(0, from - 1); c <= Math.min(cols - 1, to + 1); c++) {
+            int wellSum = MaskKernels.wellSum(colMasks, c);
+            totalWells += wellSum - wells[c];
+            wells[c] = wellSum;
+        }
+        for (int c = Math.max(0, from - 1); c <= Math.min(cols - 2, to); c++) {
+            int diff = Math.abs(top[c] - top[c + 1]);
+            totalAbsDiff += diff - heightDiffs[c];
+            heightDiffs[c] = diff;
+        }
+    }
 
-        for (int i = 0; i < length; i++) {
-            heightIncrease += top[i] - prevTop[i];
+    // Rows from..to have new cells
+    void rowsChanged(int[] rowMasks, int from, int to) {
+        for (int r = from; r <= to; r++) {
+            int transitions = MaskKernels.rowTransitions(rowMasks[r], cols);
+            totalRowTransitions += transitions - rowTransitions[r];
+            rowTransitions[r] = transitions;
         }
-        // System.out.println("weight is: " + weight);
-        return heightIncrease / length;
     }
-}
+
+    // The row was removed and everything above slid down, the columns are updated separately
+    void rowCleared(int row) {
+        totalRowTransitions += EMPTY_ROW_TRANSITIONS - rowTransitions[row];
+        System.arraycopy(rowTransitions, row + 1, rowTransitions, row, rows - 1 - row);
+        rowTransitions[rows - 1] = EMPTY_ROW_TRANSITIONS;
+    }
+
+    void copyFrom(IncrementalFeatures other) {
+        System.arraycopy(other.holes, 0, holes, 0, cols);
+        System.arraycopy(other.colTransitions, 0, colTransitions, 0, cols);
+        System.arraycopy(other.wells, 0, wells, 0, cols);
+        System.arraycopy(other.rowTransitions, 0, rowTransitions, 0, rows);
+        System.arraycopy(other.heightDiffs, 0, heightDiffs, 0, cols - 1);
+        totalHoles = other.totalHoles;
+        totalColTransitions = other.totalColTransitions;
+        totalWells = other.totalWells;
+        totalRowTransitions = other.totalRowTransitions;
+        totalAbsDiff = other.totalAbsDiff;
+    }
+}
+
+/**
+ * ==============================================================================================
+ * Piece vocabulary of {@link State} flattened into primitive arrays. Built once when the class is
+ * loaded and never written again, so every thread can read it without copying or locking.
+ * A placement is one orientation of one piece, indexed by placement(piece, orient)
+ * ==============================================================================================
+ */
+final class PieceCatalog {
+
+    static final int MAX_WIDTH = 4;
+    static final int MAX_HEIGHT = 4;
+
+    // number of placements over all pieces
+    static final int N_PLACEMENTS;
+
+    // first placement of each piece, the placement of (piece, orient) is PLACEMENT_OFFSET[piece] + orient
+    static final int[] PLACEMENT_OFFSET = new int[State.N_PIECES + 1];
+
+    // the piece and orientation of each placement
+    static final int[] PIECE;
+    static final int[] ORIENT;
+
+    // width and height of each placement
+    static final int[] WIDTH;
+    static final int[] HEIGHT;
+
+    // bottom and top of each column of each placement [placement * MAX_WIDTH + column]
+    static final int[] BOTTOM;
+    static final int[] TOP;
+
+    // cells of each placement as row masks from the bottom of the piece at slot 0 [placement * MAX_HEIGHT + row]
+    static final int[] ROW_MASKS;
+
+    // cells of each column of each placement as a column mask from the bottom of the piece [placement * MAX_WIDTH + column]
+    static final int[] COLUMN_MASKS;
+
+    // legal moves of each piece on a board of each width, as in State.legalMoves [cols][piece][move][ORIENT or SLOT]
+    static final int[][][][] LEGAL_MOVES = new int[State.MAX_COLS + 1][][][];
+
+    // the same moves split out per piece, so a move index goes straight to its orientation and slot [cols][piece][move]
+    static final int[][][] MOVE_ORIENT = new int[State.MAX_COLS + 1][][];
+    static final int[][][] MOVE_SLOT = new int[State.MAX_COLS + 1][][];
+
+    static {
+        int[] pOrients = State.getpOrients();
+        int[][] pWidth = State.getpWidth();
+        int[][] pHeight = State.getpHeight();
+        int[][][] pBottom = State.getpBottom();
+        int[][][] pTop = State.getpTop();
+
+        int n = 0;
+        for (int i = 0; i < State.N_PIECES; i++) {
+            PLACEMENT_OFFSET[i] = n;
+            n += pOrients[i];
+        }
+        PLACEMENT_OFFSET[State.N_PIECES] = n;
+        N_PLACEMENTS = n;
+
+        PIECE = new int[n];
+        ORIENT = new int[n];
+        WIDTH = new int[n];
+        HEIGHT = new int[n];
+        BOTTOM = new int[n * MAX_WIDTH];
+        TOP = new int[n * MAX_WIDTH];
+        ROW_MASKS = new int[n * MAX_HEIGHT];
+        COLUMN_MASKS = new int[n * MAX_WIDTH];
+
+        for (int i = 0; i < State.N_PIECES; i++) {
+            for (int j = 0; j < pOrients[i]; j++) {
+                int p = PLACEMENT_OFFSET[i] + j;
+                PIECE[p] = i;
+                ORIENT[p] = j;
+                WIDTH[p] = pWidth[i][j];
+                HEIGHT[p] = pHeight[i][j];
+                for (int c = 0; c < pWidth[i][j]; c++) {
+                    BOTTOM[p * MAX_WIDTH + c] = pBottom[i][j][c];
+                    TOP[p * MAX_WIDTH + c] = pTop[i][j][c];
+                    for (int h = pBottom[i][j][c]; h < pTop[i][j][c]; h++) {
+                        ROW_MASKS[p * MAX_HEIGHT + h] |= 1 << c;
+                        COLUMN_MASKS[p * MAX_WIDTH + c] |= 1 << h;
+                    }
+                }
+            }
+        }
+
+        for (int cols = State.MIN_COLS; cols <= State.MAX_COLS; cols++) {
+            LEGAL_MOVES[cols] = State.buildLegalMoves(cols);
+            MOVE_ORIENT[cols] = new int[State.N_PIECES][];
+            MOVE_SLOT[cols] = new int[State.N_PIECES][];
+            for (int i = 0; i < State.N_PIECES; i++) {
+                int[][] moves = LEGAL_MOVES[cols][i];
+                MOVE_ORIENT[cols][i] = new int[moves.length];
+                MOVE_SLOT[cols][i] = new int[moves.length];
+                for (int move = 0; move < moves.length; move++) {
+                    MOVE_ORIENT[cols][i][move] = moves[move][State.ORIENT];
+                    MOVE_SLOT[cols][i][move] = moves[move][State.SLOT];
+                }
+            }
+        }
+    }
+
+    private PieceCatalog() {
+    }
+
+    static int placement(int piece, int orient) {
+        return PLACEMENT_OFFSET[piece] + orient;
+    }
+}
+
+/**
+ * ==================================================================================================
+ * Landing heights looked up from the surface under the piece instead of looping over its bottom.
+ * The profile of a placement at a slot is how much higher each covered column is than the first one,
+ * packed 5 bits per column into a key, and the table gives how far above the first column the piece
+ * lands. A column more than 2 below the first can never hold the piece up (no bottom is deeper than
+ * 2), so drops are clamped to -3 and the key stays small for every board height
+ * ==================================================================================================
+ */
+final class LandingTable {
+    private static final int BITS = 5;
+    private static final int MIN_DIFF = -3;
+    private static final int MAX_DIFF = MIN_DIFF + (1 << BITS) - 1;
+
+    // [placement][profile key] landing height minus top[slot]
+    private static final byte[][] OFFSETS = new byte[PieceCatalog.N_PLACEMENTS][];
+
+    static {
+        if (State.MAX_ROWS - 1 > MAX_DIFF) {
+            throw new IllegalStateException("Board too tall for the landing table: " + State.MAX_ROWS);
+        }
+        for (int p = 0; p < PieceCatalog.N_PLACEMENTS; p++) {
+            int base = p * PieceCatalog.MAX_WIDTH;
+            int width = PieceCatalog.WIDTH[p];
+            int keys = 1 << (BITS * (width - 1));
+            OFFSETS[p] = new byte[keys];
+            for (int key = 0; key < keys; key++) {
+                int offset = -PieceCatalog.BOTTOM[base];
+                for (int c = 1; c < width; c++) {
+                    int diff = ((key >>> (BITS * (c - 1))) & ((1 << BITS) - 1)) + MIN_DIFF;
+                    offset = Math.max(offset, diff - PieceCatalog.BOTTOM[base + c]);
+                }
+                OFFSETS[p][key] = (byte) offset;
+            }
+        }
+    }
+
+    private LandingTable() {
+    }
+
+    // row of the bottom of the placement when it is dropped at slot
+    static int landingHeight(int placement, int[] top, int slot) {
+        int first = top[slot];
+        int key = 0;
+        for (int c = PieceCatalog.WIDTH[placement] - 1; c >= 1; c--) {
+            int diff = top[slot + c] - first;
+            key = (key << BITS) | ((diff < MIN_DIFF ? MIN_DIFF : diff) - MIN_DIFF);
+        }
+        return first + OFFSETS[placement][key];
+    }
+
+    // landing heights of every legal move of piece over top[], in the order of PieceCatalog.LEGAL_MOVES
+    static void landingHeights(int piece, int[] top, int[] out) {
+        int[] orients = PieceCatalog.MOVE_ORIENT[top.length][piece];
+        int[] slots = PieceCatalog.MOVE_SLOT[top.length][piece];
+        for (int move = 0; move < orients.length; move++) {
+            out[move] = landingHeight(PieceCatalog.placement(piece, orients[move]), top, slots[move]);
+        }
+    }
+}
+
+/**
+ * =============================
+ * Utility class to clone arrays
+ * =============================
+ */
+class ArrayHelper {
+    // Helper method to clone 2d int array instead of reference
+    static int[][] deepCopy(int[][] src) {
+        int length = src.length;
+        int[][] dest = new int[length][src[0].length];
+        for (int i = 0; i < length; i++) {
+            System.arraycopy(src[i], 0, dest[i], 0, src[i].length);
+        }
+        return dest;
+    }
+
+    // Helper method to copy a 2d int array into an existing one of the same shape
+    static void copyInto(int[][] src, int[][] dest) {
+        for (int i = 0; i < src.length; i++) {
+            System.arraycopy(src[i], 0, dest[i], 0, src[i].length);
+        }
+    }
+
+    // Overloaded helper method to clone 1d int array instead of reference
+    static int[] deepCopy(int[] src) {
+        return src.clone();
+    }
+
+    // Helper method to clone 2d int array instead of reference
+    static double[][] deepCopy(double[][] src) {
+        int length = src.length;
+        double[][] dest = new double[length][src[0].length];
+        for (int i = 0; i < length; i++) {
+            System.arraycopy(src[i], 0, dest[i], 0, src[i].length);
+        }
+        return dest;
+    }
+
+    // Overloaded helper method to clone 1d int array instead of reference
+    static double[] deepCopy(double[] src) {
+        return src.clone();
+    }
+
+    // Helper method to get the largest value of a non-empty int array
+    static int max(int[] src) {
+        int max = src[0];
+        for (int i = 1; i < src.length; i++) {
+            max = Math.max(max, src[i]);
+        }
+        return max;
+    }
+}
+
+/**
+ * ===========================================================================================
+ * Computes the values of all eight {@link Feature}s at once. The board features come from the
+ * {@link IncrementalFeatures} the StateCopy keeps up to date, the rest from one pass over top[].
+ * Gives exactly the same numbers as running each Feature, in the same order as the features are
+ * added in {@link PlayerSkeleton}
+ * ===========================================================================================
+ */
+class FusedEvaluator {
+    // index of each feature in the feature vector and the weights
+    static final int MAX_HEIGHT = 0;
+    static final int ROWS_CLEARED = 1;
+    static final int AVG_HEIGHT = 2;
+    static final int HOLES = 3;
+    static final int COLUMN_TRANSITIONS = 4;
+    static final int ABSOLUTE_DIFF = 5;
+    static final int ROW_TRANSITIONS = 6;
+    static final int WELL_SUM = 7;
+
+    private double[] values = new double[PlayerSkeleton.NUM_FEATURES];
+
+    // Returns the utility of s, the sum of weights[i] * feature i
+    double evaluate(StateCopy s, double[] weights) {
+        computeFeatures(s, values);
+        double value = 0;
+        for (int i = 0; i < values.length; i++) {
+            value += weights[i] * values[i];
+        }
+        return value;
+    }
+
+    // Writes the value of every feature of s into out
+    void computeFeatures(StateCopy s, double[] out) {
+        int maxHeight = 0;
+        for (int height : s.getTop()) {
+            maxHeight = Math.max(maxHeight, height);
+        }
+
+        IncrementalFeatures features = s.getFeatures();
+        out[MAX_HEIGHT] = maxHeight;
+        computeMoveFeatures(s, out);
+        out[HOLES] = features.getHoles();
+        out[COLUMN_TRANSITIONS] = features.getColumnTransitions();
+        out[ABSOLUTE_DIFF] = features.getAbsoluteDiff();
+        out[ROW_TRANSITIONS] = features.getRowTransitions();
+        out[WELL_SUM] = features.getWellSum();
+    }
+
+    // Writes the features that depend on the move and not only on the board it leaves, see FeatureCache
+    void computeMoveFeatures(StateCopy s, double[] out) {
+        int[] top = s.getTop();
+        int[] prevTop = s.getPreviousTop();
+        int heightIncrease = 0;
+        for (int c = 0; c < top.length; c++) {
+            heightIncrease += top[c] - prevTop[c];
+        }
+        out[ROWS_CLEARED] = s.getRowsCleared();
+        out[AVG_HEIGHT] = (double) heightIncrease / top.length;
+    }
+}
+
+/**
+ * ===============================================================================================
+ * Zobrist keys of the cells of the board. The hash of a board is the xor of the keys of its filled
+ * cells, and its mirror hash the same for the board flipped left to right
+ * ===============================================================================================
+ */
+final class Zobrist {
+    private static final long SEED = 0x5eed_7e7215L;
+
+    // [row * MAX_COLS + column], enough for the largest board
+    private static final long[] CELLS = new long[State.MAX_ROWS * State.MAX_COLS];
+
+    static {
+        SeededPieceSource random = new SeededPieceSource(SEED);
+        for (int i = 0; i < CELLS.length; i++) {
+            CELLS[i] = random.nextLong();
+        }
+    }
+
+    private Zobrist() {
+    }
+
+    static long cell(int row, int col) {
+        return CELLS[row * State.MAX_COLS + col];
+    }
+
+    // key of the cell at the same row on the other side of a board cols wide
+    static long mirrorCell(int row, int col, int cols) {
+        return CELLS[row * State.MAX_COLS + cols - 1 - col];
+    }
+
+    // hash of the board given as row masks, from scratch
+    static long hash(int[] rowMasks, int cols, boolean isMirrored) {
+        long hash = 0;
+        for (int r = 0; r < rowMasks.length; r++) {
+            for (int cells = rowMasks[r]; cells != 0; cells &= cells - 1) {
+                int c = Integer.numberOfTrailingZeros(cells);
+                hash ^= isMirrored ? mirrorCell(r, c, cols) : cell(r, c);
+            }
+        }
+        return hash;
+    }
+}
+
+/**
+ * =================================================================================================
+ * Bounded cache of board features keyed by the Zobrist hash of the board, shared by every game and
+ * every particle. Only the features of the board are stored, so an entry can be scored with any
+ * particle's weights; rows cleared and average height depend on the move and are left out.
+ * The table is split into stripes with one lock each, and each stripe is direct mapped so a new
+ * board simply replaces whatever was in its slot
+ * =================================================================================================
+ */
+class FeatureCache {
+    // megabytes of the shared cache, 0 for an eighth of the maximum heap
+    static int MEGABYTES = 0;
+
+    private static final int NUM_STRIPES = 64;
+    private static final int NUM_FEATURES = PlayerSkeleton.NUM_FEATURES;
+    // a key and the features of one board
+    private static final int ENTRY_BYTES = 8 + 8 * NUM_FEATURES;
+
+    // created on first use, so MEGABYTES can be set before
+    private static class Shared {
+        static final FeatureCache INSTANCE = new FeatureCache(NUM_STRIPES, slotsPerStripe(), true);
+    }
+
+    private final Stripe[] stripes;
+    private final int stripeBits;
+    private final int slotMask;
+    // boards and their mirror images share one entry, all the features are left-right symmetric
+    private final boolean isMirrorCanonical;
+
+    private static class Stripe {
+        private final long[] keys;
+        private final double[] values;
+
+        Stripe(int slots) {
+            keys = new long[slots];
+            values = new double[slots * NUM_FEATURES];
+        }
+    }
+
+    // the cache every player shares
+    static FeatureCache shared() {
+        return Shared.INSTANCE;
+    }
+
+    // the largest power of two slots per stripe that fits the shared cache in its megabytes
+    private static int slotsPerStripe() {
+        long bytes = MEGABYTES > 0 ? (long) MEGABYTES << 20 : Runtime.getRuntime().maxMemory() / 8;
+        long slots = Math.max(1, Math.min(1 << 30, bytes / ENTRY_BYTES / NUM_STRIPES));
+        return Integer.highestOneBit((int) slots);
+    }
+
+    // numStripes and slotsPerStripe must be powers of two
+    FeatureCache(int numStripes, int slotsPerStripe, boolean isMirrorCanonical) {
+        this.stripes = new Stripe[numStripes];
+        for (int i = 0; i < numStripes; i++) {
+            stripes[i] = new Stripe(slotsPerStripe);
+        }
+        this.stripeBits = Integer.numberOfTrailingZeros(numStripes);
+        this.slotMask = slotsPerStripe - 1;
+        this.isMirrorCanonical = isMirrorCanonical;
+    }
+
+    long keyOf(StateCopy s) {
+        // the same cells on boards of different sizes have different features
+        long size = SeededPieceSource.mix64((long) s.getRows() * (State.MAX_COLS + 1) + s.getCols());
+        long hash = s.getHash() ^ size;
+        long key = isMirrorCanonical ? Math.min(hash, s.getMirrorHash() ^ size) : hash;
+        // 0 marks an empty slot
+        return key == 0 ? 1 : key;
+    }
+
+    // Copies the cached board features into out, returns false if the board is not cached
+    boolean get(long key, double[] out) {
+        Stripe stripe = stripeOf(key);
+        int slot = slotOf(key);
+        synchronized (stripe) {
+            if (stripe.keys[slot] != key) {
+                return false;
+            }
+            int base = slot * NUM_FEATURES;
+            for (int i = 0; i < NUM_FEATURES; i++) {
+                if (i != FusedEvaluator.ROWS_CLEARED && i != FusedEvaluator.AVG_HEIGHT) {
+                    out[i] = stripe.values[base + i];
+                }
+            }
+            return true;
+        }
+    }
+
+    void put(long key, double[] features) {
+        Stripe stripe = stripeOf(key);
+        int slot = slotOf(key);
+        synchronized (stripe) {
+            stripe.keys[slot] = key;
+            System.arraycopy(features, 0, stripe.values, slot * NUM_FEATURES, NUM_FEATURES);
+        }
+    }
+
+    private Stripe stripeOf(long key) {
+        return stripes[stripeBits == 0 ? 0 : (int) (key >>> (64 - stripeBits))];
+    }
+
+    private int slotOf(long key) {
+        return (int) key & slotMask;
+    }
+}
+
+/**
+ * ==========================================================
+ * Interface to encapsulate features used for the Tetris AI
+ * ==========================================================
+ */
+interface Feature {
+    double run(StateCopy s);
+}
+
+/**
+ * Returns the number of rows cleared by the piece
+ */
+class RowsClearedFeature implements Feature {
+
+    public double run(StateCopy s) {
+        return s.getRowsCleared();
+    }
+}
+
+/**
+ * Returns the maximum height of the board when the piece is placed
+ */
+class MaxHeightFeature implements Feature {
+
+    public double run(StateCopy s) {
+        return getMaxHeight(s);
+    }
+
+    private int getMaxHeight(StateCopy s) {
+        int[] top = s.getTop();
+        int maxHeight = 0;
+
+        for (int height : top) {
+            if (maxHeight < height) {
+                maxHeight = height;
+            }
+        }
+        return maxHeight;
+    }
+}
+
+/**
+ * Returns the average height of the board when the piece is placed
+ * Average height is calculated by the total sum of the column heights divided by number of columns
+ */
+class AvgHeightFeature implements Feature {
+
+    public double run(StateCopy s) {
+        int[] prevTop = s.getPreviousTop();
+        int[] top = s.getTop();
+
+        int length = top.length;
+        double heightIncrease = 0;
+
+        for (int i = 0; i < length; i++) {
+            heightIncrease += top[i] - prevTop[i];
+        }
+        // System.out.println("weight is: " + weight);
+        return heightIncrease / length;
+    }
+}
 
 
 /**
@@ -555,7 +1786,7 @@ class HolesFeature implements Feature {
         
         int numOfHoles = 0;
         
-        for(int c = 0; c < State.COLS; c++) {
+        for(int c = 0; c < s.getCols(); c++) {
             for(int r = 0; r < top[c] - 2; r++) {
                 if(field[r][c] == 0) {
                     numOfHoles++;
@@ -578,9 +1809,9 @@ class ColumnTransitionsFeature implements Feature {
 
         int colTransitions = 0;
 
-        for (int c = 0; c < State.COLS; c++) {
+        for (int c = 0; c < s.getCols(); c++) {
             boolean priorCellFilled = true;
-            for (int r = 0; r < State.ROWS - 1; r++) {
+            for (int r = 0; r < s.getRows() - 1; r++) {
                 boolean currCellFilled = false;
                 if (field[r][c] != 0) {
                     currCellFilled = true;
@@ -608,9 +1839,9 @@ class RowTransitionsFeature implements Feature {
         int[][] field = s.getField();
         int rowTransitions = 0;
 
-        for (int r = 0; r < State.ROWS; r++) {
+        for (int r = 0; r < s.getRows(); r++) {
             boolean priorCellFilled = true;
-            for (int c = 0; c < State.COLS; c++) {
+            for (int c = 0; c < s.getCols(); c++) {
                 boolean currCellFilled = false;
                 if (field[r][c] != 0) {
                     currCellFilled = true;
@@ -663,8 +1894,8 @@ class WellSumFeature implements Feature {
 
 
         // check column wells from 2nd column
-        for (int c = 1; c < State.COLS - 1; c++) {
-            for (int r = 0; r < State.ROWS; r++) {
+        for (int c = 1; c < s.getCols() - 1; c++) {
+            for (int r = 0; r < s.getRows(); r++) {
                 // Current cell is empty,  but left and right cells are filled, meaning well
                 if (field[r][c] == 0 && field[r][c - 1] != 0 && field[r][c + 1] != 0) {
                     wellSum++;
@@ -680,7 +1911,7 @@ class WellSumFeature implements Feature {
         }
 
         // check left and right boundary wells
-        for (int r = 0; r < State.ROWS; r++) {
+        for (int r = 0; r < s.getRows(); r++) {
             // left boundary: cell at first column is empty, but column 1 is filled
             if (field[r][0] == 0 && field[r][1] != 0) {
                 wellSum++;
@@ -694,7 +1925,7 @@ class WellSumFeature implements Feature {
             }
 
             // right boundary: cell at last column empty, but second last column is filled
-            int rightBoundaryIndex = State.COLS - 1;
+            int rightBoundaryIndex = s.getCols() - 1;
             if (field[r][rightBoundaryIndex] == 0 && field[r][rightBoundaryIndex - 1] != 0) {
                 wellSum++;
                 // check depth of well
@@ -711,85 +1942,299 @@ class WellSumFeature implements Feature {
 }
 
 /**
- * =============================================================================================================
- * This class contains the particle swarm optimizer algorithm to help us get the best weights for the features
- * =============================================================================================================
+ * ===============================================================================================
+ * Feature kernels on row and column bitmasks (bit c of a row mask is column c, bit r of a column
+ * mask is row r). Row transitions come from a table over every possible row, the column features
+ * from popcounts and leading zero counts of a single int instead of walking the cells
+ * ===============================================================================================
  */
-class PSO {
-    // Bounds the velocity of the Particles in the swarm
-    private static int UPPERBOUND_VELOCITY = 5;
-    private static int LOWERBOUND_VELOCITY = -5;
-    private static int RANGE_VELOCITY = UPPERBOUND_VELOCITY - LOWERBOUND_VELOCITY;
+final class MaskKernels {
+    private static final int COLS = State.COLS;
 
-    // Bounds the search space of the swarm
-    // Sidenote: Might have been a bad idea to limit it to just +-10, should have made it bigger
-    private static int UPPERBOUND_POSITION = 10;
-    private static int LOWERBOUND_POSITION = -10;
-    private static int RANGE_POSITION = UPPERBOUND_POSITION - LOWERBOUND_POSITION;
+    // mask of a row where every column is filled, on the standard board
+    static final int FULL_ROW = (1 << COLS) - 1;
+    // mask of a column where every row of the tallest board is filled, used for the walls
+    static final int FULL_COLUMN = (1 << State.MAX_ROWS) - 1;
 
-    private static int NUM_FEATURES = PlayerSkeleton.NUM_FEATURES;
-    private static int NUM_PARTICLES = 161;  // obtained from Meta Optimization
+    // row transitions of every possible row of the standard board, walls count as filled cells
+    static final byte[] ROW_TRANSITIONS = new byte[1 << COLS];
 
-    // Make each particle play NUM_GAMES games to get average score
-    static int NUM_GAMES = 3;
+    static {
+        for (int mask = 0; mask <= FULL_ROW; mask++) {
+            ROW_TRANSITIONS[mask] = (byte) countRowTransitions(mask, COLS);
+        }
+    }
 
-    // Number of iterations each particle moves
-    private static int NUM_ITERATIONS = 1000;
+    private MaskKernels() {
+    }
 
-    // Maximize number of threads to use for parallelization
-    private static int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+    // empty cells below top - 2 of a column
+    static int holes(int column, int top) {
+        if (top <= 2) {
+            return 0;
+        }
+        return Integer.bitCount(~column & ((1 << (top - 2)) - 1));
+    }
 
-    private boolean hasWeightsFromFile = false;
+    // row transitions of a row of a board cols wide, from the table on the standard board
+    static int rowTransitions(int row, int cols) {
+        return cols == COLS ? ROW_TRANSITIONS[row] : countRowTransitions(row, cols);
+    }
 
-    private static String LOG_FILE = "./t_weights_log.txt";
-    private static String TRAINED_WEIGHTS = "./trained_weights.txt";
+    private static int countRowTransitions(int row, int cols) {
+        // the row with a filled wall cell on each side
+        int walled = (row << 1) | 1 | (1 << (cols + 1));
+        return Integer.bitCount((walled ^ (walled >>> 1)) & ((1 << (cols + 1)) - 1));
+    }
 
-    private static Particle[] particles;
+    // column transitions of a column of a board rows tall without its top row, the floor counts as filled
+    static int columnTransitions(int column, int rows) {
+        int counted = (1 << (rows - 1)) - 1;
+        int cells = column & counted;
+        return Integer.bitCount((cells ^ ((cells << 1) | 1)) & counted);
+    }
 
-    private int globalBest;
-    private double[] globalBestPositions = new double[NUM_FEATURES];
+    // well cells of column c, each counted with the empty cells right below it
+    static int wellSum(int[] colMasks, int c) {
+        int column = colMasks[c];
+        int left = c == 0 ? FULL_COLUMN : colMasks[c - 1];
+        int right = c == colMasks.length - 1 ? FULL_COLUMN : colMasks[c + 1];
+        int wellCells = ~column & left & right & FULL_COLUMN;
 
-    private ExecutorService executor;
+        int wellSum = 0;
+        while (wellCells != 0) {
+            int r = Integer.numberOfTrailingZeros(wellCells);
+            wellCells &= wellCells - 1;
+            // the highest filled cell below r, or -1 for the floor
+            int filledBelow = 31 - Integer.numberOfLeadingZeros(column & ((1 << r) - 1));
+            wellSum += r - filledBelow;
+        }
+        return wellSum;
+    }
+}
 
-    PSO() {
+/**
+ * Mask kernel version of {@link HolesFeature}
+ */
+class HolesMaskFeature implements Feature {
+    public double run(StateCopy s) {
+        int[] colMasks = s.getColumnMasks();
+        int[] top = s.getTop();
 
-        File file = new File(TRAINED_WEIGHTS);
-        if(file.exists() && !file.isDirectory()) {
-            readWeightsFromFile(file);
+        int numOfHoles = 0;
+        for (int c = 0; c < s.getCols(); c++) {
+            numOfHoles += MaskKernels.holes(colMasks[c], top[c]);
         }
+        return numOfHoles;
+    }
+}
 
-        executor = Executors.newFixedThreadPool(NUM_THREADS);
+/**
+ * Mask kernel version of {@link ColumnTransitionsFeature}
+ */
+class ColumnTransitionsMaskFeature implements Feature {
+    public double run(StateCopy s) {
+        int colTransitions = 0;
+        for (int column : s.getColumnMasks()) {
+            colTransitions += MaskKernels.columnTransitions(column, s.getRows());
+        }
+        return colTransitions;
+    }
+}
 
-        globalBest = 0;
-        createSwarm();
+/**
+ * Mask kernel version of {@link RowTransitionsFeature}
+ */
+class RowTransitionsMaskFeature implements Feature {
+    public double run(StateCopy s) {
+        int rowTransitions = 0;
+        for (int row : s.getRowMasks()) {
+            rowTransitions += MaskKernels.rowTransitions(row, s.getCols());
+        }
+        return rowTransitions;
+    }
+}
+
+/**
+ * Mask kernel version of {@link WellSumFeature}
+ */
+class WellSumMaskFeature implements Feature {
+    public double run(StateCopy s) {
+        int[] colMasks = s.getColumnMasks();
+        int wellSum = 0;
+        for (int c = 0; c < s.getCols(); c++) {
+            wellSum += MaskKernels.wellSum(colMasks, c);
+        }
+        return wellSum;
+    }
+}
+
+/**
+ * =============================================================================================================
+ * This class contains the particle swarm optimizer algorithm to help us get the best weights for the features
+ * =============================================================================================================
+ */
+class PSO implements Optimizer {
+    // Bounds the velocity of the Particles in the swarm
+    private static int UPPERBOUND_VELOCITY = 5;
+    private static int LOWERBOUND_VELOCITY = -5;
+    private static int RANGE_VELOCITY = UPPERBOUND_VELOCITY - LOWERBOUND_VELOCITY;
+
+    // Bounds the search space of the swarm
+    // Sidenote: Might have been a bad idea to limit it to just +-10, should have made it bigger
+    private static int UPPERBOUND_POSITION = 10;
+    private static int LOWERBOUND_POSITION = -10;
+    private static int RANGE_POSITION = UPPERBOUND_POSITION - LOWERBOUND_POSITION;
+
+    private static int NUM_FEATURES = PlayerSkeleton.NUM_FEATURES;
+    static int NUM_PARTICLES = 161;  // obtained from Meta Optimization, the default swarm size
+
+    // Make each particle play NUM_GAMES games to get average score
+    static int NUM_GAMES = 3;
+
+    // Stop each game after MAX_MOVES moves or MAX_LINES rows cleared and score it with the estimated rows
+    // of the full game, 0 to play games to the end
+    static int MAX_MOVES = 0;
+    static int MAX_LINES = 0;
+
+    // Size of the board the particles are trained on. Strong weights lose much sooner on a shorter board, so a
+    // coarse search there gets a fitness signal in a fraction of the time; the result is validated on the
+    // standard board at the end
+    static int BOARD_ROWS = State.ROWS;
+    static int BOARD_COLS = State.COLS;
+
+    // Moves the validation games on the standard board are truncated after when MAX_MOVES and MAX_LINES are not
+    // set, strong weights would otherwise play for hours
+    static int VALIDATION_MAX_MOVES = 1000000;
+
+    // Number of iterations each particle moves
+    static int NUM_ITERATIONS = 1000;
+
+    // Maximize number of threads to use for parallelization
+    static int NUM_THREADS = Runtime.getRuntime().availableProcessors();
+
+    // One executor of NUM_THREADS threads for the games of every PSO in the JVM, so swarms running at the same
+    // time share the cores instead of each starting threads for all of them. Its threads are daemons
+    private static ExecutorService sharedExecutor;
+
+    private boolean hasWeightsFromFile = false;
+
+    private static String LOG_FILE = "./t_weights_log.txt";
+    private static String TRAINED_WEIGHTS = "./trained_weights.txt";
+    static String CHECKPOINT_FILE = "./swarm_checkpoint.bin";
+
+    // Save a checkpoint after every CHECKPOINT_INTERVAL iterations of run()
+    private static int CHECKPOINT_INTERVAL = 1;
+
+    private Particle[] particles;
+
+    private int globalBest;
+    // rows actually cleared by the global best before its games were truncated
+    private int globalBestRaw;
+    private double[] globalBestPositions = new double[NUM_FEATURES];
+
+    private ExecutorService executor = sharedExecutor();
+
+    // parameters of this swarm's particles
+    private double inertia = Particle.INERTIA;
+    private double socialParameter = Particle.SOCIAL_PARAMETER;
+    private double cognitiveParameter = Particle.COGNITIVE_PARAMETER;
+
+    // seeds of the games and of the swarm's randomness, null to play unseeded games
+    private SeedSequence seeds;
+
+    // races the particles in every iteration instead of playing NUM_GAMES games each, null to play them all
+    private RacingEvaluator racing;
+
+    // plays the games of run() on the executor or on the workers
+    private GameEvaluator evaluator = new GameEvaluator(sharedExecutor());
+
+    // the iteration the swarm is in, for the islands
+    private int iteration = 0;
+
+    // false for a swarm that leaves trained_weights.txt and t_weights_log.txt alone
+    private boolean isWritingWeights = true;
+
+    // the island model this swarm is one island of, null for a swarm on its own
+    private IslandSwarm islands;
+    // printed before every log line of this swarm, names the island
+    private String logPrefix = "";
+
+    // saves the swarm between iterations of run(), null for no checkpoints
+    private Checkpointer checkpointer;
+    // the iteration run() starts from, later than 0 when the swarm was restored from a checkpoint
+    private int startIteration = 0;
+
+    PSO() {
+        initSwarm(NUM_PARTICLES);
+    }
+
+    // Alternate constructor for common random numbers: in every iteration all particles play the same
+    // NUM_GAMES piece sequences, so differences in score come from the weights and not from the pieces.
+    // The whole run, swarm included, is reproducible from the seed
+    PSO(long seed) {
+        seeds = new SeedSequence(seed);
+        System.out.println("Training with seed " + seed);
+        initSwarm(NUM_PARTICLES);
     }
 
     // Alternate constructor for meta optimization to set the parameters
     PSO(int numParticles, double inertia, double socialParameter, double cognitiveParameter) {
 
-        NUM_PARTICLES = numParticles;
-        Particle.INERTIA = inertia;
-        Particle.SOCIAL_PARAMETER = socialParameter;
-        Particle.COGNITIVE_PARAMETER = cognitiveParameter;
-        System.out.println("NUM_PARTICLES, INERTA, PARAMETERS are: " + NUM_PARTICLES + " " + Particle.INERTIA + " "
-            + Particle.COGNITIVE_PARAMETER + " " + Particle.SOCIAL_PARAMETER);
+        this.inertia = inertia;
+        this.socialParameter = socialParameter;
+        this.cognitiveParameter = cognitiveParameter;
+        System.out.println("NUM_PARTICLES, INERTA, PARAMETERS are: " + numParticles + " " + inertia + " "
+            + cognitiveParameter + " " + socialParameter);
+        initSwarm(numParticles);
+    }
+
+    // Alternate constructor for comparing configurations: a seeded swarm from random positions that neither reads
+    // nor writes trained_weights.txt
+    PSO(int numParticles, double inertia, double socialParameter, double cognitiveParameter, SeedSequence seeds) {
+        this.inertia = inertia;
+        this.socialParameter = socialParameter;
+        this.cognitiveParameter = cognitiveParameter;
+        this.seeds = seeds;
+        isWritingWeights = false;
+
+        globalBest = 0;
+        createSwarm(numParticles);
+    }
+
+    // Alternate constructor for one island of an IslandSwarm, with its own particles, seeds and executor
+    PSO(IslandSwarm islands, int island, int numParticles, SeedSequence seeds, ExecutorService executor) {
+        this.islands = islands;
+        this.seeds = seeds;
+        this.executor = executor;
+        evaluator = new GameEvaluator(executor);
+        logPrefix = "Island " + island + " ";
+        initSwarm(numParticles);
+    }
 
+    // Starts the swarm from the weights in trained_weights.txt if there are any, see createSwarm
+    private void initSwarm(int numParticles) {
         File file = new File(TRAINED_WEIGHTS);
         if(file.exists() && !file.isDirectory()) {
             readWeightsFromFile(file);
         }
 
-        executor = Executors.newFixedThreadPool(NUM_THREADS);
-
         globalBest = 0;
-        createSwarm();
+        createSwarm(numParticles);
+    }
+
+    static synchronized ExecutorService sharedExecutor() {
+        if (sharedExecutor == null) {
+            sharedExecutor = Executors.newWorkStealingPool(NUM_THREADS);
+        }
+        return sharedExecutor;
     }
 
     // Initiate the swarm by creating random positions and velocities
-    private void createSwarm() {
-        Random random = new Random();
-        particles = new Particle[NUM_PARTICLES];
-        for (int i = 0; i < NUM_PARTICLES; i++) {
+    private void createSwarm(int numParticles) {
+        Random random = seeds == null ? new Random() : new Random(seeds.swarmSeed());
+        particles = new Particle[numParticles];
+        for (int i = 0; i < numParticles; i++) {
             double[] fitness = new double[NUM_FEATURES];
             double[] velocity = new double[NUM_FEATURES];
             for (int j = 0; j < NUM_FEATURES; j++) {
@@ -805,40 +2250,99 @@ class PSO {
                     velocity[j] *= -1;
                 }
             }
-            particles[i] = new Particle(fitness, velocity);
+            particles[i] = seeds == null ? new Particle(fitness, velocity)
+                    : new Particle(fitness, velocity, new SwarmRandom(seeds.particleSeed(i)));
         }
     }
 
     // main method
     public int run() {
-        for (int i = 0; i < NUM_ITERATIONS; i++) {
-            // Run all Particles and make them play their own game in their own thread
-            int[] scoreForAll = playGamesAndReturnScores();
+        for (int i = startIteration; i < NUM_ITERATIONS; i++) {
+            runIteration(i);
 
-            int k = 0;
-            for (Particle particle : particles) {
-                // retrieve score from Futures
-                int score = scoreForAll[k++];
-                particle.updatePersonalBest(score);
+            if (checkpointer != null && ((i + 1) % CHECKPOINT_INTERVAL == 0 || i + 1 == NUM_ITERATIONS)) {
+                checkpointer.saveSwarmState(snapshot(i + 1));
+            }
+        }
+        return finish();
+    }
+
+    // Plays the games of one iteration with every particle and moves them
+    void runIteration(int i) {
+        long start = System.nanoTime();
+        iteration = i;
+        // Run all Particles and make them play their own game in their own thread
+        int[] scoreForAll;
+        if (racing != null) {
+            scoreForAll = racing.evaluate(particles, gameSeeds(i, racing.getMaxGames()), globalBest, executor);
+        } else {
+            GameScore[] scores = evaluator.evaluate(propose(), gameSeeds(i));
+            scoreForAll = new int[particles.length];
+            for (int k = 0; k < particles.length; k++) {
+                particles[k].setRawScore(scores[k].rowsCleared);
+                scoreForAll[k] = (int) scores[k].estimate;
+            }
+        }
+        receive(scoreForAll);
+        TrainingMetrics.INSTANCE.iterationFinished(System.nanoTime() - start);
+
+        // Log details
+        System.out.printf("%sIteration %d globalBest: %d\n", logPrefix, i, globalBest);
+        if (isTruncatingGames()) {
+            System.out.printf("%sIteration %d globalBest raw truncated score: %d\n", logPrefix, i, globalBestRaw);
+        }
+        if (racing != null) {
+            System.out.printf("%sIteration %d racing: %d of %d games played\n", logPrefix, i,
+                    racing.getGamesPlayed(), particles.length * NUM_GAMES);
+        }
+        // Write to log file, the islands log their overall best instead
+        if (islands == null && isWritingWeights) {
+            writeToLogFile(i);
+        }
+    }
+
+    // the particles' positions, the weights they play their games with
+    public double[][] propose() {
+        double[][] weights = new double[particles.length][];
+        for (int i = 0; i < particles.length; i++) {
+            weights[i] = particles[i].getPosition();
+        }
+        return weights;
+    }
 
-                // Update global best score and positions if particle scored higher
-                if (score > globalBest) {
-                    globalBest = score;
-                    globalBestPositions = ArrayHelper.deepCopy(particle.getPosition());
+    // moves the particles after they scored the given fitness with the positions of propose()
+    public void receive(int[] scoreForAll) {
+        int k = 0;
+        for (Particle particle : particles) {
+            // retrieve score from Futures
+            int score = scoreForAll[k++];
+            particle.updatePersonalBest(score);
+
+            // Update global best score and positions if particle scored higher
+            if (score > globalBest) {
+                globalBest = score;
+                globalBestRaw = particle.getRawScore();
+                globalBestPositions = ArrayHelper.deepCopy(particle.getPosition());
+                if (islands != null) {
+                    islands.offerBest(iteration, globalBest, globalBestPositions);
+                } else if (isWritingWeights) {
                     writeBestWeightsToFile();
                 }
-
-                // Get ready for next iteration
-                particle.updateVelocity(globalBestPositions, UPPERBOUND_VELOCITY, LOWERBOUND_VELOCITY);
-                particle.updatePosition(UPPERBOUND_POSITION, LOWERBOUND_POSITION);
             }
 
-            // Log details
-            System.out.printf("Iteration %d globalBest: %d\n", i, globalBest);
-            // Write to log file
-            writeToLogFile(i);
+            // Get ready for next iteration
+            particle.updateVelocity(globalBestPositions, inertia, cognitiveParameter, socialParameter,
+                    UPPERBOUND_VELOCITY, LOWERBOUND_VELOCITY);
+            particle.updatePosition(UPPERBOUND_POSITION, LOWERBOUND_POSITION);
         }
+    }
 
+    /**
+     * Prints the global best, validates it on the standard board if the swarm trained on another, writes it
+     * to trained_weights.txt
+     * @return the global best
+     */
+    int finish() {
         // Best score for this training session here
         System.out.println("Best result: " + globalBest);
         for (double globalBestPosition : globalBestPositions) {
@@ -846,36 +2350,269 @@ class PSO {
         }
         System.out.println();
 
+        if (BOARD_ROWS != State.ROWS || BOARD_COLS != State.COLS) {
+            System.out.println("Validation on the standard board: " + validateOnStandardBoard());
+        }
+
         // Write to trained_weights.txt
-        writeBestWeightsToFile();
+        if (isWritingWeights) {
+            writeBestWeightsToFile();
+        }
+
+        return globalBest;
+    }
+
+    /**
+     * Asynchronous version of run(). There is no barrier between iterations: each particle is moved and
+     * resubmitted by the worker that played its games, as soon as they finish, so a particle with a long game
+     * only holds up itself. The global best is shared through an AtomicReference, an iteration is counted
+     * every particles.length evaluations, and every particle gets NUM_ITERATIONS evaluations in total
+     */
+    public int runAsync() {
+        AtomicReference<GlobalBest> best = new AtomicReference<>(
+                new GlobalBest(globalBest, globalBestRaw, globalBestPositions));
+        AtomicInteger evaluations = new AtomicInteger();
+        CountDownLatch finished = new CountDownLatch(particles.length);
+
+        for (Particle particle : particles) {
+            executor.execute(new AsyncParticleTask(particle, best, evaluations, finished));
+        }
+        try {
+            finished.await();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+
+        globalBest = best.get().score;
+        globalBestRaw = best.get().rawScore;
+        globalBestPositions = best.get().positions;
+
+        return finish();
+    }
+
+    // Best score of the swarm and the positions that got it, replaced as a whole so it can be swapped atomically
+    private static class GlobalBest {
+        private final int score;
+        private final int rawScore;
+        private final double[] positions;
+
+        GlobalBest(int score, int rawScore, double[] positions) {
+            this.score = score;
+            this.rawScore = rawScore;
+            this.positions = positions;
+        }
+    }
+
+    /**
+     * Plays the games of one particle, moves it and resubmits itself until the particle has had NUM_ITERATIONS
+     * evaluations. Only one task per particle is ever in flight, so the particle itself needs no locking
+     */
+    private class AsyncParticleTask implements Runnable {
+        private Particle particle;
+        private AtomicReference<GlobalBest> best;
+        private AtomicInteger evaluations;
+        private CountDownLatch finished;
+        private int iterations = 0;
+
+        AsyncParticleTask(Particle particle, AtomicReference<GlobalBest> best, AtomicInteger evaluations,
+                          CountDownLatch finished) {
+            this.particle = particle;
+            this.best = best;
+            this.evaluations = evaluations;
+            this.finished = finished;
+        }
+
+        public void run() {
+            // the particle drops out if its games fail, without leaving runAsync() waiting for it
+            boolean isResubmitted = false;
+            try {
+                int score = new CallableTrainer(particle, gameSeeds(iterations)).call();
+                particle.updatePersonalBest(score);
+
+                // publish the particle's position if it beats the global best, unless another particle just did better
+                GlobalBest current = best.get();
+                while (score > current.score) {
+                    GlobalBest candidate = new GlobalBest(score, particle.getRawScore(),
+                            ArrayHelper.deepCopy(particle.getPosition()));
+                    if (best.compareAndSet(current, candidate)) {
+                        // the writes can finish in another order than the swaps, so each one writes the best so far
+                        if (isWritingWeights) {
+                            synchronized (best) {
+                                writeBestWeightsToFile(best.get().positions);
+                            }
+                        }
+                        break;
+                    }
+                    current = best.get();
+                }
+
+                // Get ready for next iteration
+                particle.updateVelocity(best.get().positions, inertia, cognitiveParameter, socialParameter,
+                        UPPERBOUND_VELOCITY, LOWERBOUND_VELOCITY);
+                particle.updatePosition(UPPERBOUND_POSITION, LOWERBOUND_POSITION);
+
+                int evaluation = evaluations.incrementAndGet();
+                if (evaluation % particles.length == 0) {
+                    int iteration = evaluation / particles.length - 1;
+                    GlobalBest snapshot = best.get();
+                    // Log details
+                    System.out.printf("Iteration %d globalBest: %d\n", iteration, snapshot.score);
+                    if (isTruncatingGames()) {
+                        System.out.printf("Iteration %d globalBest raw truncated score: %d\n", iteration,
+                                snapshot.rawScore);
+                    }
+                    // Write to log file
+                    if (isWritingWeights) {
+                        writeToLogFile(iteration, snapshot.score, snapshot.positions);
+                    }
+                }
 
-        // shutdown executor before closing app
-        executor.shutdown();
+                if (++iterations < NUM_ITERATIONS) {
+                    executor.execute(this);
+                    isResubmitted = true;
+                }
+            } finally {
+                if (!isResubmitted) {
+                    finished.countDown();
+                }
+            }
+        }
+    }
 
+    public int getBestScore() {
         return globalBest;
     }
 
+    public double[] getBestWeights() {
+        return globalBestPositions;
+    }
+
+    // rows the global best actually cleared before its games were truncated
+    int getBestRawScore() {
+        return globalBestRaw;
+    }
+
     /**
-     * Method that creates a thread for each Particle to play game
-     * @return average scores of game played
+     * Takes in a migrant from another island: it replaces the particle with the lowest personal best, and becomes
+     * the global best of this island if it beats it
      */
-    private int[] playGamesAndReturnScores() {
-        List<Future<Integer>> futureList = new ArrayList<>();
-        int[] scoreForAll = new int[NUM_PARTICLES];
+    void immigrate(int score, int rawScore, double[] positions) {
+        Particle worst = particles[0];
         for (Particle particle : particles) {
-            Future<Integer> future = executor.submit(new CallableTrainer(particle));
-            futureList.add(future);
+            if (particle.getPersonalBest() < worst.getPersonalBest()) {
+                worst = particle;
+            }
+        }
+        worst.replaceWith(positions, score);
+        if (score > globalBest) {
+            globalBest = score;
+            globalBestRaw = rawScore;
+            globalBestPositions = ArrayHelper.deepCopy(positions);
+        }
+    }
+
+    // Leave trained_weights.txt and t_weights_log.txt to the caller, for swarms run side by side
+    void setWritingWeights(boolean isWritingWeights) {
+        this.isWritingWeights = isWritingWeights;
+    }
+
+    // Save a checkpoint of the swarm every CHECKPOINT_INTERVAL iterations of run(). runAsync() has no point where
+    // every particle is between evaluations, so it is not checkpointed
+    void setCheckpointer(Checkpointer checkpointer) {
+        this.checkpointer = checkpointer;
+    }
+
+    /**
+     * The complete state of the swarm before the given iteration of run(), enough to carry on bit for bit
+     * from there: the seeds of the games, the global best, and every particle with its random numbers
+     */
+    byte[] snapshot(int nextIteration) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(nextIteration);
+            out.writeBoolean(seeds != null);
+            out.writeLong(seeds == null ? 0 : seeds.getSeed());
+            out.writeInt(globalBest);
+            out.writeInt(globalBestRaw);
+            Checkpointer.writeDoubles(out, globalBestPositions);
+            out.writeInt(particles.length);
+            for (Particle particle : particles) {
+                particle.writeTo(out);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    // Replaces the swarm with the one in the snapshot, run() then carries on from the snapshot's iteration
+    void restore(byte[] snapshot) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(snapshot))) {
+            startIteration = in.readInt();
+            boolean isSeeded = in.readBoolean();
+            long seed = in.readLong();
+            seeds = isSeeded ? new SeedSequence(seed) : null;
+            globalBest = in.readInt();
+            globalBestRaw = in.readInt();
+            globalBestPositions = Checkpointer.readDoubles(in);
+            particles = new Particle[in.readInt()];
+            for (int i = 0; i < particles.length; i++) {
+                particles[i] = Particle.readFrom(in);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        System.out.println("Resuming at iteration " + startIteration + " globalBest: " + globalBest);
+    }
+
+    // Play the games of run() on the worker JVMs connected to the job server. Racing and runAsync() still play
+    // their games in this JVM
+    void useWorkers(JobServer jobServer) {
+        evaluator.useWorkers(jobServer);
+    }
+
+    // Race the particles in run(): stop playing games with particles that cannot win, and play more games with
+    // the ones that can. Only the synchronous run() races, runAsync() has no rounds to race in
+    void useRacing() {
+        racing = new RacingEvaluator(Math.max(1, particles.length / 10), 1, 2 * NUM_GAMES);
+    }
+
+    /**
+     * Plays NUM_GAMES games on the standard board with the global best, after training on another board
+     * @return average rows cleared, estimated if the games are truncated
+     */
+    private int validateOnStandardBoard() {
+        long[] validationSeeds = gameSeeds(NUM_ITERATIONS);
+        List<Future<GameScore>> futureList = new ArrayList<>();
+        for (int gameNum = 0; gameNum < NUM_GAMES; gameNum++) {
+            long seed = validationSeeds == null ? SeededPieceSource.randomSeed() : validationSeeds[gameNum];
+            double[] weights = globalBestPositions;
+            futureList.add(executor.submit(() -> GameArena.current().play(weights, seed, State.ROWS, State.COLS,
+                    isTruncatingGames() ? MAX_MOVES : VALIDATION_MAX_MOVES, MAX_LINES)));
         }
 
-        for (int j = 0; j < futureList.size(); j++) {
-            Future<Integer> future = futureList.get(j);
+        double results = 0;
+        for (Future<GameScore> future : futureList) {
             try {
-                scoreForAll[j] += future.get();
+                results += future.get().estimate;
             } catch (InterruptedException | ExecutionException e) {
                 e.printStackTrace();
             }
         }
-        return scoreForAll;
+        return (int) (results / NUM_GAMES);
+    }
+
+    static boolean isTruncatingGames() {
+        return MAX_MOVES > 0 || MAX_LINES > 0;
+    }
+
+    // seeds of the games every particle plays in the given iteration, null for unseeded games
+    private long[] gameSeeds(int iteration) {
+        return gameSeeds(iteration, NUM_GAMES);
+    }
+
+    private long[] gameSeeds(int iteration, int numGames) {
+        return seeds == null ? null : seeds.gameSeeds(iteration, numGames);
     }
 
     private void readWeightsFromFile(File f) {
@@ -894,6 +2631,11 @@ class PSO {
     }
 
     private void writeBestWeightsToFile() {
+        writeBestWeightsToFile(globalBestPositions);
+    }
+
+    // synchronized as the asynchronous workers and the islands may write the file at the same time
+    static synchronized void writeBestWeightsToFile(double[] globalBestPositions) {
         try {
             BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(TRAINED_WEIGHTS));
             for (double globalBestPosition : globalBestPositions) {
@@ -907,6 +2649,10 @@ class PSO {
     }
 
     private void writeToLogFile(int iteration) {
+        writeToLogFile(iteration, globalBest, globalBestPositions);
+    }
+
+    static synchronized void writeToLogFile(int iteration, int globalBest, double[] globalBestPositions) {
         try {
             BufferedWriter bufferedWriter = new BufferedWriter(new FileWriter(LOG_FILE, true));
             bufferedWriter.append("Iteration ").append(String.valueOf(iteration)).append(", Score: ").append(String.valueOf(globalBest)).append("\n");
@@ -924,42 +2670,2115 @@ class PSO {
 }
 
 /**
- * Trainer class for {@link PSO}.
- * Plays a full game NUM_GAME times for each particle and returns the average rows cleared
+ * =====================================================================================
+ * Island model for {@link PSO}: the particles are split into independent swarms, each with its own global best
+ * and seeds, that run their iterations without waiting for each other. Every
+ * MIGRATION_INTERVAL iterations each island sends the positions of its global best to the next island in a ring,
+ * where they replace the particle with the lowest personal best. Only the migrations synchronize the islands,
+ * so a seeded run is still reproducible
+ * =====================================================================================
  */
-class CallableTrainer implements Callable<Integer> {
-    private Particle particle;
+class IslandSwarm {
+    // Iterations between migrations, 0 for islands that never exchange particles
+    static int MIGRATION_INTERVAL = 10;
+
+    private PSO[] islands;
+    // migrants on their way to each island, one per migration
+    private List<BlockingQueue<Migrant>> inboxes = new ArrayList<>();
+    // every island waits here until the others have sent their migrants, an island that fails leaves it so the
+    // others do not wait for it forever
+    private Phaser migration;
+
+    // best of all islands, written to trained_weights.txt
+    private int overallBest = 0;
+
+    // Global best of an island sent to the next one
+    private static class Migrant {
+        private final int score;
+        // rows actually cleared before the games were truncated
+        private final int rawScore;
+        private final double[] positions;
+
+        Migrant(int score, int rawScore, double[] positions) {
+            this.score = score;
+            this.rawScore = rawScore;
+            this.positions = positions;
+        }
+    }
 
-    CallableTrainer(Particle particle) {
-        this.particle = particle;
+    /**
+     * Splits NUM_PARTICLES particles and NUM_THREADS threads between the islands. Each island plays its games on
+     * a pool of its own, so an island with slow games cannot hold up the games of the others
+     * @param seed seed of the run, each island gets its own seeds from it; null for unseeded games
+     */
+    IslandSwarm(int numIslands, Long seed) {
+        islands = new PSO[numIslands];
+        int numParticles = Math.max(1, PSO.NUM_PARTICLES / numIslands);
+        int numThreads = Math.max(1, PSO.NUM_THREADS / numIslands);
+        for (int i = 0; i < numIslands; i++) {
+            SeedSequence seeds = seed == null ? null : new SeedSequence(SeededPieceSource.mix64(seed + i));
+            islands[i] = new PSO(this, i, numParticles, seeds, Executors.newWorkStealingPool(numThreads));
+            inboxes.add(new LinkedBlockingQueue<>());
+        }
+        migration = new Phaser(numIslands);
+        System.out.println("Training " + numIslands + " islands of " + numParticles + " particles and "
+                + numThreads + " threads");
     }
 
-    public Integer call() {
-        // System.out.println("I think multi-threading is happening"); // check
+    // Race the particles of every island
+    void useRacing() {
+        for (PSO island : islands) {
+            island.useRacing();
+        }
+    }
 
-        // Run the simulation NUM_GAME times per Particle and get average to get best positions
-        int results = 0;
-        for (int gameNum = 0; gameNum < PSO.NUM_GAMES; gameNum++) {
-            PlayerSkeleton trainPlayerSkeleton = new PlayerSkeleton();
-            State state = new State();
+    // Play the games of every island on the worker JVMs, the job server takes batches from all of them at once
+    void useWorkers(JobServer jobServer) {
+        for (PSO island : islands) {
+            island.useWorkers(jobServer);
+        }
+    }
 
-            trainPlayerSkeleton.updateWeights(particle.getPosition());
-            results += PlayerSkeleton.train(state, trainPlayerSkeleton);    // this will return rows cleared
+    // main method
+    public int run() {
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < islands.length; i++) {
+            int island = i;
+            Thread thread = new Thread(() -> runIsland(island), "island-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
         }
 
-        return results / PSO.NUM_GAMES;
+        PSO best = islands[0];
+        for (PSO island : islands) {
+            if (island.getBestScore() > best.getBestScore()) {
+                best = island;
+            }
+        }
+        return best.finish();
     }
-}
 
-
-/**
+    private void runIsland(int island) {
+        PSO swarm = islands[island];
+        try {
+            for (int i = 0; i < PSO.NUM_ITERATIONS; i++) {
+                swarm.runIteration(i);
+                if (MIGRATION_INTERVAL > 0 && islands.length > 1 && (i + 1) % MIGRATION_INTERVAL == 0
+                        && i + 1 < PSO.NUM_ITERATIONS) {
+                    migrate(island);
+                }
+            }
+        } finally {
+            migration.arriveAndDeregister();
+        }
+    }
+
+    // Sends the island's global best to the next island and takes in the one from the previous island
+    private void migrate(int island) {
+        PSO swarm = islands[island];
+        inboxes.get((island + 1) % islands.length).add(new Migrant(swarm.getBestScore(), swarm.getBestRawScore(),
+                ArrayHelper.deepCopy(swarm.getBestWeights())));
+        migration.arriveAndAwaitAdvance();
+        // the queue keeps the migrants in order, so this is the one sent in this migration. Every island sends its
+        // migrant before it arrives, so there is none only when the previous island failed
+        Migrant migrant = inboxes.get(island).poll();
+        if (migrant != null) {
+            swarm.immigrate(migrant.score, migrant.rawScore, migrant.positions);
+        }
+    }
+
+    // Called by an island when its global best improves, keeps trained_weights.txt at the best of all islands
+    synchronized void offerBest(int iteration, int score, double[] positions) {
+        if (score > overallBest) {
+            overallBest = score;
+            PSO.writeBestWeightsToFile(positions);
+            PSO.writeToLogFile(iteration, score, positions);
+        }
+    }
+}
+
+/**
+ * =====================================================================================
+ * Optimizer of the feature weights: it proposes weight vectors and receives the fitness of each one, and the
+ * next proposal follows from that. Games are where all of the time goes, so every optimizer has its games played
+ * by a {@link GameEvaluator}, see {@link OptimizerTrainer}
+ * =====================================================================================
+ */
+interface Optimizer {
+    // weight vectors to play games with next
+    double[][] propose();
+
+    // the average rows cleared with each weight vector of the last propose(), in the same order
+    void receive(int[] fitness);
+
+    int getBestScore();
+
+    double[] getBestWeights();
+}
+
+/**
+ * =====================================================================================
+ * Evaluation engine shared by the optimizers: plays PSO.NUM_GAMES games on the training board with each weight
+ * vector, every game its own task on the work-stealing executor or a job for the worker JVMs, and averages them.
+ * Counts the games and moves it plays, the cost of an optimizer
+ * =====================================================================================
+ */
+class GameEvaluator {
+    private ExecutorService executor;
+    // plays the games on worker JVMs instead of the executor, null to play them here
+    private JobServer jobServer;
+
+    private AtomicLong gamesPlayed = new AtomicLong();
+    private AtomicLong movesPlayed = new AtomicLong();
+
+    GameEvaluator(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    void useWorkers(JobServer jobServer) {
+        this.jobServer = jobServer;
+    }
+
+    long getGamesPlayed() {
+        return gamesPlayed.get();
+    }
+
+    long getMovesPlayed() {
+        return movesPlayed.get();
+    }
+
+    /**
+     * Plays the games of every weight vector, the same games for each of them
+     * @param gameSeeds seed of each game, null for unseeded games
+     * @return average rows cleared and average estimate of each weight vector
+     */
+    GameScore[] evaluate(double[][] weights, long[] gameSeeds) {
+        int numGames = PSO.NUM_GAMES;
+        GameScore[] games = jobServer == null ? playGames(weights, gameSeeds) : playGamesOnWorkers(weights, gameSeeds);
+        gamesPlayed.addAndGet(games.length);
+        long moves = 0;
+        for (GameScore game : games) {
+            moves += game.moves;
+        }
+        movesPlayed.addAndGet(moves);
+
+        GameScore[] scores = new GameScore[weights.length];
+        for (int i = 0; i < weights.length; i++) {
+            double results = 0;
+            int rawResults = 0;
+            for (int gameNum = 0; gameNum < numGames; gameNum++) {
+                results += games[i * numGames + gameNum].estimate;
+                rawResults += games[i * numGames + gameNum].rowsCleared;
+            }
+            scores[i] = new GameScore(rawResults / numGames, results / numGames);
+        }
+        return scores;
+    }
+
+    // Every game its own task, so a weight vector with a long game does not hold up the rest of its games
+    private GameScore[] playGames(double[][] weights, long[] gameSeeds) {
+        int numGames = PSO.NUM_GAMES;
+        List<Future<GameScore>> futureList = new ArrayList<>();
+        for (double[] weight : weights) {
+            for (int gameNum = 0; gameNum < numGames; gameNum++) {
+                long seed = gameSeeds == null ? SeededPieceSource.randomSeed() : gameSeeds[gameNum];
+                futureList.add(executor.submit(() -> GameArena.current().play(weight, seed, PSO.BOARD_ROWS,
+                        PSO.BOARD_COLS, PSO.MAX_MOVES, PSO.MAX_LINES)));
+            }
+        }
+
+        GameScore[] games = new GameScore[futureList.size()];
+        for (int j = 0; j < games.length; j++) {
+            try {
+                games[j] = futureList.get(j).get();
+            } catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+                games[j] = new GameScore(0, 0);
+            }
+        }
+        return games;
+    }
+
+    // Same as playGames, with every game a job for the workers
+    private GameScore[] playGamesOnWorkers(double[][] weights, long[] gameSeeds) {
+        int numGames = PSO.NUM_GAMES;
+        double[][] jobWeights = new double[weights.length * numGames][];
+        long[] seeds = new long[weights.length * numGames];
+        for (int i = 0; i < weights.length; i++) {
+            for (int gameNum = 0; gameNum < numGames; gameNum++) {
+                jobWeights[i * numGames + gameNum] = weights[i];
+                seeds[i * numGames + gameNum] = gameSeeds == null ? SeededPieceSource.randomSeed() : gameSeeds[gameNum];
+            }
+        }
+        return jobServer.play(jobWeights, seeds);
+    }
+}
+
+/**
+ * Trains an {@link Optimizer} on the games of a {@link GameEvaluator}: every iteration its proposal plays the
+ * same games, seeded per iteration, and the best weights so far are written to trained_weights.txt
+ */
+class OptimizerTrainer {
+    private Optimizer optimizer;
+    private GameEvaluator evaluator;
+    // seeds of the games, null to play unseeded games
+    private SeedSequence seeds;
+
+    OptimizerTrainer(Optimizer optimizer, GameEvaluator evaluator, SeedSequence seeds) {
+        this.optimizer = optimizer;
+        this.evaluator = evaluator;
+        this.seeds = seeds;
+    }
+
+    // main method
+    int run(int iterations) {
+        int best = optimizer.getBestScore();
+        for (int i = 0; i < iterations; i++) {
+            iterate(i);
+
+            if (optimizer.getBestScore() > best) {
+                best = optimizer.getBestScore();
+                PSO.writeBestWeightsToFile(optimizer.getBestWeights());
+            }
+            // Log details
+            System.out.printf("Iteration %d best: %d after %d games\n", i, best, evaluator.getGamesPlayed());
+            PSO.writeToLogFile(i, best, optimizer.getBestWeights());
+        }
+
+        // Best score for this training session here
+        System.out.println("Best result: " + best);
+        for (double weight : optimizer.getBestWeights()) {
+            System.out.print(weight + " ");
+        }
+        System.out.println();
+        return best;
+    }
+
+    // Plays the games of the optimizer's next proposal and hands it their fitness
+    void iterate(int iteration) {
+        long start = System.nanoTime();
+        double[][] weights = optimizer.propose();
+        GameScore[] scores = evaluator.evaluate(weights,
+                seeds == null ? null : seeds.gameSeeds(iteration, PSO.NUM_GAMES));
+        int[] fitness = new int[scores.length];
+        for (int k = 0; k < scores.length; k++) {
+            fitness[k] = (int) scores[k].estimate;
+        }
+        optimizer.receive(fitness);
+        TrainingMetrics.INSTANCE.iterationFinished(System.nanoTime() - start);
+    }
+}
+
+/**
+ * =====================================================================================
+ * Noisy cross-entropy method (Szita and Lorincz, Learning Tetris Using the Noisy Cross-Entropy Method). Weights
+ * are sampled from independent normal distributions. After each iteration the mean and variance of every weight
+ * are refitted to the elite, the best ELITE_FRACTION of the samples. Noise is added to the variance so it does
+ * not collapse before the mean has converged; the noise shrinks every iteration
+ * =====================================================================================
+ */
+class CrossEntropyOptimizer implements Optimizer {
+    static int NUM_SAMPLES = 100;
+    static double ELITE_FRACTION = 0.1;
+    // variance of every weight before the first iteration
+    static double INITIAL_VARIANCE = 100;
+    // noise added to the variance in iteration t is max(NOISE - t * NOISE_DECAY, 0)
+    static double NOISE = 5;
+    static double NOISE_DECAY = 0.1;
+
+    private int numSamples;
+    private double eliteFraction;
+
+    private double[] mean;
+    private double[] variance;
+    private Random random;
+
+    private double[][] samples;
+    private int iteration = 0;
+
+    private int bestScore = 0;
+    private double[] bestWeights;
+
+    CrossEntropyOptimizer(int numFeatures, Random random) {
+        this(numFeatures, NUM_SAMPLES, ELITE_FRACTION, random);
+    }
+
+    CrossEntropyOptimizer(int numFeatures, int numSamples, double eliteFraction, Random random) {
+        this.numSamples = numSamples;
+        this.eliteFraction = eliteFraction;
+        this.random = random;
+        mean = new double[numFeatures];
+        variance = new double[numFeatures];
+        Arrays.fill(variance, INITIAL_VARIANCE);
+        bestWeights = new double[numFeatures];
+    }
+
+    public double[][] propose() {
+        samples = new double[numSamples][mean.length];
+        for (double[] sample : samples) {
+            for (int j = 0; j < mean.length; j++) {
+                sample[j] = mean[j] + Math.sqrt(variance[j]) * random.nextGaussian();
+            }
+        }
+        return samples;
+    }
+
+    public void receive(int[] fitness) {
+        Integer[] order = byFitness(fitness);
+        if (fitness[order[0]] > bestScore) {
+            bestScore = fitness[order[0]];
+            bestWeights = ArrayHelper.deepCopy(samples[order[0]]);
+        }
+
+        int numElite = Math.max(1, (int) Math.round(samples.length * eliteFraction));
+        double noise = Math.max(NOISE - iteration * NOISE_DECAY, 0);
+        for (int j = 0; j < mean.length; j++) {
+            double sum = 0;
+            for (int e = 0; e < numElite; e++) {
+                sum += samples[order[e]][j];
+            }
+            mean[j] = sum / numElite;
+            double sumOfSquares = 0;
+            for (int e = 0; e < numElite; e++) {
+                double deviation = samples[order[e]][j] - mean[j];
+                sumOfSquares += deviation * deviation;
+            }
+            variance[j] = sumOfSquares / numElite + noise;
+        }
+        iteration++;
+    }
+
+    public int getBestScore() {
+        return bestScore;
+    }
+
+    public double[] getBestWeights() {
+        return bestWeights;
+    }
+
+    // indices of the fitness from the highest to the lowest, equal fitness in the order proposed
+    static Integer[] byFitness(int[] fitness) {
+        Integer[] order = new Integer[fitness.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Integer.compare(fitness[b], fitness[a]));
+        return order;
+    }
+}
+
+/**
+ * =====================================================================================
+ * CMA-ES, the (mu/mu_w, lambda) evolution strategy with covariance matrix adaptation, after Hansen's tutorial
+ * (The CMA Evolution Strategy: A Tutorial) with its default parameters. Samples are drawn from a multivariate
+ * normal distribution. Its mean moves to the weighted mean of the best half of the samples. The covariance
+ * matrix learns the directions that worked, and the step size sigma follows the length of the evolution path.
+ * With 8 weights the eigendecomposition of the covariance matrix is cheap enough to redo every iteration
+ * =====================================================================================
+ */
+class CmaEsOptimizer implements Optimizer {
+    // step size before the first iteration
+    static double INITIAL_SIGMA = 5;
+
+    private int n;
+    private int lambda;
+    private int mu;
+    private double[] recombinationWeights;
+    private double mueff;
+    private double cc, cs, c1, cmu, damps, chiN;
+
+    private double[] mean;
+    private double sigma;
+    private double[] pc;
+    private double[] ps;
+    // C = B * diag(D^2) * B'
+    private double[][] c;
+    private double[][] b;
+    private double[] d;
+    private int evaluations = 0;
+
+    private Random random;
+    private double[][] samples;
+
+    private int bestScore = 0;
+    private double[] bestWeights;
+
+    CmaEsOptimizer(int numFeatures, Random random) {
+        this(numFeatures, 4 + (int) (3 * Math.log(numFeatures)), INITIAL_SIGMA, random);
+    }
+
+    CmaEsOptimizer(int numFeatures, int populationSize, double sigma, Random random) {
+        this.random = random;
+        n = numFeatures;
+        lambda = populationSize;
+        mu = lambda / 2;
+        recombinationWeights = new double[mu];
+        double sum = 0;
+        for (int i = 0; i < mu; i++) {
+            recombinationWeights[i] = Math.log(mu + 0.5) - Math.log(i + 1);
+            sum += recombinationWeights[i];
+        }
+        double sumOfSquares = 0;
+        for (int i = 0; i < mu; i++) {
+            recombinationWeights[i] /= sum;
+            sumOfSquares += recombinationWeights[i] * recombinationWeights[i];
+        }
+        mueff = 1 / sumOfSquares;
+
+        cc = (4 + mueff / n) / (n + 4 + 2 * mueff / n);
+        cs = (mueff + 2) / (n + mueff + 5);
+        c1 = 2 / ((n + 1.3) * (n + 1.3) + mueff);
+        cmu = Math.min(1 - c1, 2 * (mueff - 2 + 1 / mueff) / ((n + 2) * (n + 2) + mueff));
+        damps = 1 + 2 * Math.max(0, Math.sqrt((mueff - 1) / (n + 1)) - 1) + cs;
+        chiN = Math.sqrt(n) * (1 - 1.0 / (4 * n) + 1.0 / (21 * n * n));
+
+        mean = new double[n];
+        this.sigma = sigma;
+        pc = new double[n];
+        ps = new double[n];
+        c = new double[n][n];
+        b = new double[n][n];
+        d = new double[n];
+        for (int i = 0; i < n; i++) {
+            c[i][i] = 1;
+            b[i][i] = 1;
+            d[i] = 1;
+        }
+        bestWeights = new double[n];
+    }
+
+    public double[][] propose() {
+        samples = new double[lambda][n];
+        double[] z = new double[n];
+        for (double[] sample : samples) {
+            for (int j = 0; j < n; j++) {
+                z[j] = d[j] * random.nextGaussian();
+            }
+            for (int i = 0; i < n; i++) {
+                double y = 0;
+                for (int j = 0; j < n; j++) {
+                    y += b[i][j] * z[j];
+                }
+                sample[i] = mean[i] + sigma * y;
+            }
+        }
+        return samples;
+    }
+
+    public void receive(int[] fitness) {
+        Integer[] order = CrossEntropyOptimizer.byFitness(fitness);
+        if (fitness[order[0]] > bestScore) {
+            bestScore = fitness[order[0]];
+            bestWeights = ArrayHelper.deepCopy(samples[order[0]]);
+        }
+        evaluations += lambda;
+
+        // move the mean to the weighted mean of the best mu samples
+        double[] oldMean = mean;
+        mean = new double[n];
+        for (int k = 0; k < mu; k++) {
+            for (int i = 0; i < n; i++) {
+                mean[i] += recombinationWeights[k] * samples[order[k]][i];
+            }
+        }
+        double[] step = new double[n];
+        for (int i = 0; i < n; i++) {
+            step[i] = (mean[i] - oldMean[i]) / sigma;
+        }
+
+        // evolution path of sigma, in the coordinates where the samples are isotropic: C^-1/2 * step
+        double[] stepInB = new double[n];
+        for (int j = 0; j < n; j++) {
+            for (int i = 0; i < n; i++) {
+                stepInB[j] += b[i][j] * step[i];
+            }
+            stepInB[j] /= d[j];
+        }
+        double psNorm = 0;
+        for (int i = 0; i < n; i++) {
+            double isotropicStep = 0;
+            for (int j = 0; j < n; j++) {
+                isotropicStep += b[i][j] * stepInB[j];
+            }
+            ps[i] = (1 - cs) * ps[i] + Math.sqrt(cs * (2 - cs) * mueff) * isotropicStep;
+            psNorm += ps[i] * ps[i];
+        }
+        psNorm = Math.sqrt(psNorm);
+
+        // evolution path of C, stalled while sigma grows fast
+        boolean hsig = psNorm / Math.sqrt(1 - Math.pow(1 - cs, 2.0 * evaluations / lambda)) / chiN
+                < 1.4 + 2.0 / (n + 1);
+        for (int i = 0; i < n; i++) {
+            pc[i] = (1 - cc) * pc[i] + (hsig ? Math.sqrt(cc * (2 - cc) * mueff) * step[i] : 0);
+        }
+
+        // rank one update from the path and rank mu update from the best samples
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j <= i; j++) {
+                double rankMu = 0;
+                for (int k = 0; k < mu; k++) {
+                    double[] sample = samples[order[k]];
+                    rankMu += recombinationWeights[k] * (sample[i] - oldMean[i]) * (sample[j] - oldMean[j]);
+                }
+                rankMu /= sigma * sigma;
+                c[i][j] = (1 - c1 - cmu) * c[i][j]
+                        + c1 * (pc[i] * pc[j] + (hsig ? 0 : cc * (2 - cc) * c[i][j]))
+                        + cmu * rankMu;
+                c[j][i] = c[i][j];
+            }
+        }
+
+        sigma *= Math.exp((cs / damps) * (psNorm / chiN - 1));
+
+        decompose();
+    }
+
+    public int getBestScore() {
+        return bestScore;
+    }
+
+    public double[] getBestWeights() {
+        return bestWeights;
+    }
+
+    // B and D from C with the cyclic Jacobi eigenvalue method
+    private void decompose() {
+        double[][] a = ArrayHelper.deepCopy(c);
+        for (int i = 0; i < n; i++) {
+            Arrays.fill(b[i], 0);
+            b[i][i] = 1;
+        }
+        for (int sweep = 0; sweep < 50; sweep++) {
+            double offDiagonal = 0;
+            for (int p = 0; p < n; p++) {
+                for (int q = p + 1; q < n; q++) {
+                    offDiagonal += a[p][q] * a[p][q];
+                }
+            }
+            if (offDiagonal < 1e-30) {
+                break;
+            }
+            for (int p = 0; p < n; p++) {
+                for (int q = p + 1; q < n; q++) {
+                    if (a[p][q] == 0) {
+                        continue;
+                    }
+                    double theta = (a[q][q] - a[p][p]) / (2 * a[p][q]);
+                    double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+                    if (theta == 0) {
+                        t = 1;
+                    }
+                    double cos = 1 / Math.sqrt(t * t + 1);
+                    double sin = t * cos;
+                    for (int k = 0; k < n; k++) {
+                        double akp = a[k][p];
+                        double akq = a[k][q];
+                        a[k][p] = cos * akp - sin * akq;
+                        a[k][q] = sin * akp + cos * akq;
+                    }
+                    for (int k = 0; k < n; k++) {
+                        double apk = a[p][k];
+                        double aqk = a[q][k];
+                        a[p][k] = cos * apk - sin * aqk;
+                        a[q][k] = sin * apk + cos * aqk;
+                    }
+                    for (int k = 0; k < n; k++) {
+                        double bkp = b[k][p];
+                        double bkq = b[k][q];
+                        b[k][p] = cos * bkp - sin * bkq;
+                        b[k][q] = sin * bkp + cos * bkq;
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < n; i++) {
+            // rounding can leave a tiny negative eigenvalue
+            d[i] = Math.sqrt(Math.max(a[i][i], 1e-20));
+        }
+    }
+}
+
+/**
+ * =====================================================================================
+ * Records a game into a compact binary log: the piece and the chosen move of every turn, with a keyframe of the
+ * board every KEYFRAME_INTERVAL turns, so GameReplayer can replay the game exactly and seek to any turn without
+ * replaying it from the start. Any PieceSource can be recorded, the pieces are in the log.
+ *
+ * Format, big endian fixed-size header and trailer, unsigned LEB128 varints in between:
+ *   header:    int MAGIC, int VERSION, int rows, int cols, long seed (0 if unknown), int keyframe interval
+ *   turn:      varint (move index in legalMoves << 3) | piece, one byte for most moves on the standard board
+ *   keyframe:  varint 7 (no piece is 7), varint turn, varint rows cleared, varint height h, h varint row masks,
+ *              the board before the move of that turn
+ *   trailer:   varint keyframe count, per keyframe varint turn and varint byte offset as deltas from the previous
+ *              one, varint turns, varint rows cleared, long trailer offset, int MAGIC
+ * A log without its trailer, from a game that never finished, is still readable up to its last whole turn
+ * =====================================================================================
+ */
+class GameRecorder implements Closeable {
+    static final int MAGIC = 0x54455452;    // "TETR"
+    static final int VERSION = 1;
+    static final int KEYFRAME = 7;
+    static final int HEADER_SIZE = 28;
+    static final int FOOTER_SIZE = 12;
+
+    static int KEYFRAME_INTERVAL = 4096;
+
+    private State state;
+    private OutputStream out;
+    private int keyframeInterval;
+    // bytes written so far
+    private long position = 0;
+
+    private List<Integer> keyframeTurns = new ArrayList<>();
+    private List<Long> keyframeOffsets = new ArrayList<>();
+
+    GameRecorder(State state, OutputStream out) {
+        this(state, out, KEYFRAME_INTERVAL);
+    }
+
+    // Records the game of the state from its current turn on, which must be its first
+    GameRecorder(State state, OutputStream out, int keyframeInterval) {
+        this.state = state;
+        this.out = new BufferedOutputStream(out, 1 << 16);
+        this.keyframeInterval = keyframeInterval;
+        PieceSource pieces = state.getPieceSource();
+        long seed = pieces instanceof SeededPieceSource ? ((SeededPieceSource) pieces).getSeed() : 0;
+        try {
+            DataOutputStream header = new DataOutputStream(this.out);
+            header.writeInt(MAGIC);
+            header.writeInt(VERSION);
+            header.writeInt(state.getRows());
+            header.writeInt(state.getCols());
+            header.writeLong(seed);
+            header.writeInt(keyframeInterval);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        position = HEADER_SIZE;
+    }
+
+    // Records the move about to be made with the state's next piece, call before State.makeMove
+    void record(int move) {
+        try {
+            int turn = state.getTurnNumber();
+            if (turn > 0 && turn % keyframeInterval == 0) {
+                writeKeyframe();
+            }
+            writeVarint(((long) move << 3) | state.getNextPiece());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeKeyframe() throws IOException {
+        keyframeTurns.add(state.getTurnNumber());
+        keyframeOffsets.add(position);
+        int[][] field = state.getField();
+        int height = ArrayHelper.max(state.getTop());
+        writeVarint(KEYFRAME);
+        writeVarint(state.getTurnNumber());
+        writeVarint(state.getRowsCleared());
+        writeVarint(height);
+        for (int r = 0; r < height; r++) {
+            int mask = 0;
+            for (int c = 0; c < state.getCols(); c++) {
+                if (field[r][c] != 0) {
+                    mask |= 1 << c;
+                }
+            }
+            writeVarint(mask);
+        }
+    }
+
+    // Writes the trailer with the keyframe index and closes the log
+    public void close() throws IOException {
+        long trailerOffset = position;
+        writeVarint(keyframeTurns.size());
+        int previousTurn = 0;
+        long previousOffset = 0;
+        for (int i = 0; i < keyframeTurns.size(); i++) {
+            writeVarint(keyframeTurns.get(i) - previousTurn);
+            writeVarint(keyframeOffsets.get(i) - previousOffset);
+            previousTurn = keyframeTurns.get(i);
+            previousOffset = keyframeOffsets.get(i);
+        }
+        writeVarint(state.getTurnNumber());
+        writeVarint(state.getRowsCleared());
+        DataOutputStream footer = new DataOutputStream(out);
+        footer.writeLong(trailerOffset);
+        footer.writeInt(MAGIC);
+        out.close();
+    }
+
+    private void writeVarint(long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+            position++;
+        }
+        out.write((int) value);
+        position++;
+    }
+}
+
+/**
+ * Replays a game written by {@link GameRecorder} on a State, headless and at the speed of State.makeMove. The
+ * State takes its pieces from the log, so it makes exactly the recorded moves on exactly the recorded pieces.
+ * seek() starts from the last keyframe at or before the turn instead of from the first turn
+ */
+class GameReplayer implements PieceSource {
+    private byte[] data;
+    private int rows;
+    private int cols;
+    private long seed;
+    // the turns are between these offsets
+    private int recordsStart = GameRecorder.HEADER_SIZE;
+    private int recordsEnd;
+
+    private int[] keyframeTurns;
+    private int[] keyframeOffsets;
+    // turns and rows cleared of the whole game, -1 when the log has no trailer
+    private int finalTurns = -1;
+    private int finalRowsCleared = -1;
+
+    private int position;
+    // the turn read ahead for State's next piece, piece -1 at the end of the log
+    private int pendingPiece;
+    private int pendingMove;
+    // move of the turn State is about to play, -1 at the end of the log
+    private int currentMove = -1;
+    private State state;
+
+    GameReplayer(byte[] data) throws IOException {
+        this.data = data;
+        DataInputStream header = new DataInputStream(new ByteArrayInputStream(data));
+        if (data.length < GameRecorder.HEADER_SIZE || header.readInt() != GameRecorder.MAGIC
+                || header.readInt() != GameRecorder.VERSION) {
+            throw new IOException("Not a game recording");
+        }
+        rows = header.readInt();
+        cols = header.readInt();
+        seed = header.readLong();
+        header.readInt();   // keyframe interval, the index has the keyframes
+
+        recordsEnd = data.length;
+        if (data.length >= recordsStart + GameRecorder.FOOTER_SIZE) {
+            DataInputStream footer = new DataInputStream(
+                    new ByteArrayInputStream(data, data.length - GameRecorder.FOOTER_SIZE, GameRecorder.FOOTER_SIZE));
+            long trailerOffset = footer.readLong();
+            if (footer.readInt() == GameRecorder.MAGIC && trailerOffset >= recordsStart
+                    && trailerOffset <= data.length - GameRecorder.FOOTER_SIZE) {
+                recordsEnd = (int) trailerOffset;
+                readTrailer();
+                return;
+            }
+        }
+        indexKeyframes();
+    }
+
+    static GameReplayer read(File file) throws IOException {
+        return new GameReplayer(Files.readAllBytes(file.toPath()));
+    }
+
+    private void readTrailer() {
+        position = recordsEnd;
+        int count = (int) readVarint();
+        keyframeTurns = new int[count];
+        keyframeOffsets = new int[count];
+        int turn = 0;
+        int offset = 0;
+        for (int i = 0; i < count; i++) {
+            turn += (int) readVarint();
+            offset += (int) readVarint();
+            keyframeTurns[i] = turn;
+            keyframeOffsets[i] = offset;
+        }
+        finalTurns = (int) readVarint();
+        finalRowsCleared = (int) readVarint();
+    }
+
+    // Without a trailer the keyframes are found by reading through the log, up to its last whole turn
+    private void indexKeyframes() {
+        List<int[]> keyframes = new ArrayList<>();
+        position = recordsStart;
+        int lastWhole = position;
+        try {
+            while (position < recordsEnd) {
+                int start = position;
+                long value = readVarint();
+                if (value == GameRecorder.KEYFRAME) {
+                    int turn = (int) readVarint();
+                    skipKeyframe();
+                    keyframes.add(new int[] {turn, start});
+                }
+                lastWhole = position;
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            // the last varint was cut off
+        }
+        recordsEnd = lastWhole;
+        keyframeTurns = new int[keyframes.size()];
+        keyframeOffsets = new int[keyframes.size()];
+        for (int i = 0; i < keyframes.size(); i++) {
+            keyframeTurns[i] = keyframes.get(i)[0];
+            keyframeOffsets[i] = keyframes.get(i)[1];
+        }
+    }
+
+    // skips the rest of a keyframe after its turn
+    private void skipKeyframe() {
+        readVarint();
+        int height = (int) readVarint();
+        for (int r = 0; r < height; r++) {
+            readVarint();
+        }
+    }
+
+    /**
+     * The game at the start of the given turn, or at its last turn if the log ends before. Decodes from the last
+     * keyframe at or before the turn
+     */
+    State seek(int turn) {
+        int keyframe = -1;
+        for (int low = 0, high = keyframeTurns.length - 1; low <= high; ) {
+            int middle = (low + high) >>> 1;
+            if (keyframeTurns[middle] <= turn) {
+                keyframe = middle;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+
+        if (keyframe < 0) {
+            position = recordsStart;
+            readTurn();
+            state = new State(this, rows, cols);
+        } else {
+            position = keyframeOffsets[keyframe];
+            readVarint();
+            int keyframeTurn = (int) readVarint();
+            int cleared = (int) readVarint();
+            int[] rowMasks = new int[(int) readVarint()];
+            for (int r = 0; r < rowMasks.length; r++) {
+                rowMasks[r] = (int) readVarint();
+            }
+            readTurn();
+            state = new State(this, rows, cols);
+            state.restore(keyframeTurn, cleared, rowMasks);
+        }
+
+        while (state.getTurnNumber() < turn && step()) {
+        }
+        return state;
+    }
+
+    // Makes the next recorded move, false at the end of the log
+    boolean step() {
+        // the losing move draws no piece after it
+        if (currentMove < 0 || state.hasLost()) {
+            return false;
+        }
+        state.makeMove(currentMove);
+        return true;
+    }
+
+    // the piece of the turn read ahead, State asks for it after every move
+    public int nextPiece() {
+        int piece = pendingPiece;
+        currentMove = pendingPiece < 0 ? -1 : pendingMove;
+        readTurn();
+        return piece < 0 ? 0 : piece;
+    }
+
+    // reads ahead to the next turn, past any keyframe
+    private void readTurn() {
+        while (position < recordsEnd) {
+            long value = readVarint();
+            if (value == GameRecorder.KEYFRAME) {
+                readVarint();
+                skipKeyframe();
+            } else {
+                pendingPiece = (int) (value & 7);
+                pendingMove = (int) (value >>> 3);
+                return;
+            }
+        }
+        pendingPiece = -1;
+    }
+
+    private long readVarint() {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = data[position++];
+            value |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    int getFinalTurns() {
+        return finalTurns;
+    }
+
+    int getFinalRowsCleared() {
+        return finalRowsCleared;
+    }
+
+    long getSeed() {
+        return seed;
+    }
+
+    /**
+     * The replay mode of main: seeks to the turn, replays the rest of the game headless and reports the speed, and
+     * whether the replay ended where the recorded game did
+     */
+    static void replay(File file, int fromTurn) {
+        try {
+            long start = System.nanoTime();
+            GameReplayer replayer = read(file);
+            State s = replayer.seek(fromTurn);
+            long seekNanos = System.nanoTime() - start;
+            System.out.printf("Seeked to turn %d of %s in %.1f ms, %d keyframes%n", s.getTurnNumber(), file,
+                    seekNanos / 1e6, replayer.keyframeTurns.length);
+
+            int firstTurn = s.getTurnNumber();
+            start = System.nanoTime();
+            while (replayer.step()) {
+            }
+            double seconds = (System.nanoTime() - start) / 1e9;
+            int moves = s.getTurnNumber() - firstTurn;
+            System.out.printf("Replayed %d moves in %.2f s, %.0f moves/s%n", moves, seconds, moves / seconds);
+            System.out.println("Turns: " + s.getTurnNumber() + ", rows cleared: " + s.getRowsCleared()
+                    + (s.hasLost() ? ", lost" : ""));
+            if (replayer.getFinalTurns() < 0) {
+                System.out.println("The recording has no trailer, the game was cut off");
+            } else if (replayer.getFinalTurns() != s.getTurnNumber()
+                    || replayer.getFinalRowsCleared() != s.getRowsCleared()) {
+                System.out.println("Replay differs from the recording: " + replayer.getFinalTurns() + " turns, "
+                        + replayer.getFinalRowsCleared() + " rows cleared");
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
+
+/**
+ * =====================================================================================
+ * Counters of the training games, published as the TrainingMetricsMBean and printed as a snapshot line every
+ * SNAPSHOT_SECONDS while training. The counters are striped LongAdders, and the games only touch them once every
+ * FLUSH_MOVES moves and when they finish: the player counts its boards in a field of its own, and each thread
+ * keeps its game in a Game of its own, so nothing shared is written in the loop of pickMove
+ * =====================================================================================
+ */
+class TrainingMetrics implements TrainingMetricsMBean {
+    static final TrainingMetrics INSTANCE = new TrainingMetrics();
+    static final String OBJECT_NAME = "tetris:type=TrainingMetrics";
+
+    // moves between flushes of a game in flight, a power of 2
+    static final int FLUSH_MOVES = 1 << 16;
+    static int SNAPSHOT_SECONDS = 60;
+
+    private final LongAdder moves = new LongAdder();
+    private final LongAdder boardsEvaluated = new LongAdder();
+    private final LongAdder linesCleared = new LongAdder();
+    private final LongAdder gamesPlayed = new LongAdder();
+    private final LongAccumulator longestGameMoves = new LongAccumulator(Math::max, 0);
+    private final LongAdder iterations = new LongAdder();
+    private volatile long lastIterationNanos = 0;
+
+    // the game of every live thread that has played one, for the games in flight and the longest running game.
+    // Only the thread itself holds on to its Game, so the pool's retired threads drop out of here
+    private final Queue<WeakReference<Game>> games = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<Game> game = ThreadLocal.withInitial(() -> {
+        Game threadGame = new Game();
+        liveGames();
+        games.add(new WeakReference<>(threadGame));
+        return threadGame;
+    });
+
+    // the executor the training games are queued on, null if there is none
+    private volatile ExecutorService executor;
+    private ScheduledExecutorService snapshots;
+
+    // counters at the last snapshot line, for its rates
+    private long lastSnapshotNanos;
+    private long lastSnapshotMoves;
+    private long lastSnapshotGames;
+
+    /**
+     * The game a thread plays, only written by that thread. The moves, boards and rows already flushed are kept
+     * so a flush only adds what is new
+     */
+    final class Game {
+        // System.nanoTime() at the start of the game, 0 while there is none
+        private volatile long startNanos = 0;
+        private long flushedMoves;
+        private long flushedLines;
+
+        void flush(State s, PlayerSkeleton p) {
+            moves.add(s.getTurnNumber() - flushedMoves);
+            linesCleared.add(s.getRowsCleared() - flushedLines);
+            boardsEvaluated.add(p.takeBoardsEvaluated());
+            flushedMoves = s.getTurnNumber();
+            flushedLines = s.getRowsCleared();
+        }
+
+        void finish(State s, PlayerSkeleton p) {
+            flush(s, p);
+            gamesPlayed.increment();
+            longestGameMoves.accumulate(s.getTurnNumber());
+            startNanos = 0;
+        }
+    }
+
+    // Call before playing a game on the board, which may be part way through it
+    Game startGame(State s, PlayerSkeleton p) {
+        Game threadGame = game.get();
+        threadGame.startNanos = System.nanoTime();
+        threadGame.flushedMoves = s.getTurnNumber();
+        threadGame.flushedLines = s.getRowsCleared();
+        p.takeBoardsEvaluated();
+        return threadGame;
+    }
+
+    void iterationFinished(long nanos) {
+        iterations.increment();
+        lastIterationNanos = nanos;
+    }
+
+    /**
+     * Registers the MBean and prints a snapshot line every SNAPSHOT_SECONDS on a daemon thread. Only the first
+     * call does anything, executor is the one the training games queue on, null if there is none
+     */
+    synchronized void start(ExecutorService executor) {
+        if (snapshots != null) {
+            return;
+        }
+        this.executor = executor;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName(OBJECT_NAME));
+        } catch (JMException e) {
+            e.printStackTrace();
+        }
+        lastSnapshotNanos = System.nanoTime();
+        snapshots = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "training-metrics");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshots.scheduleAtFixedRate(() -> System.out.println(snapshot()), SNAPSHOT_SECONDS, SNAPSHOT_SECONDS,
+                TimeUnit.SECONDS);
+    }
+
+    // One line of the counters, with the rates since the previous line
+    synchronized String snapshot() {
+        long now = System.nanoTime();
+        long totalMoves = getMovesSimulated();
+        long totalGames = getGamesPlayed();
+        double seconds = (now - lastSnapshotNanos) / 1e9;
+        String line = String.format(Locale.ROOT, "Metrics: %d moves (%.0f/s), %d boards, %d lines, %d games "
+                        + "(%.2f/s), %d in flight, longest running %.1f s, longest %d moves, iteration %d took "
+                        + "%.1f s, queue %d", totalMoves, (totalMoves - lastSnapshotMoves) / seconds,
+                getBoardsEvaluated(), getLinesCleared(), totalGames, (totalGames - lastSnapshotGames) / seconds,
+                getGamesInFlight(), getLongestRunningGameMillis() / 1e3, getLongestGameMoves(), getIterations(),
+                getLastIterationMillis() / 1e3, getExecutorQueueDepth());
+        lastSnapshotNanos = now;
+        lastSnapshotMoves = totalMoves;
+        lastSnapshotGames = totalGames;
+        return line;
+    }
+
+    public long getMovesSimulated() {
+        return moves.sum();
+    }
+
+    public long getBoardsEvaluated() {
+        return boardsEvaluated.sum();
+    }
+
+    public long getLinesCleared() {
+        return linesCleared.sum();
+    }
+
+    public long getGamesPlayed() {
+        return gamesPlayed.sum();
+    }
+
+    public int getGamesInFlight() {
+        int inFlight = 0;
+        for (Game threadGame : liveGames()) {
+            if (threadGame.startNanos != 0) {
+                inFlight++;
+            }
+        }
+        return inFlight;
+    }
+
+    public long getLongestRunningGameMillis() {
+        long now = System.nanoTime();
+        long longest = 0;
+        for (Game threadGame : liveGames()) {
+            long start = threadGame.startNanos;
+            if (start != 0) {
+                longest = Math.max(longest, now - start);
+            }
+        }
+        return longest / 1000000;
+    }
+
+    // the games of the threads still alive, forgets the others
+    private List<Game> liveGames() {
+        List<Game> live = new ArrayList<>();
+        for (Iterator<WeakReference<Game>> it = games.iterator(); it.hasNext(); ) {
+            Game threadGame = it.next().get();
+            if (threadGame == null) {
+                it.remove();
+            } else {
+                live.add(threadGame);
+            }
+        }
+        return live;
+    }
+
+    public long getLongestGameMoves() {
+        return longestGameMoves.get();
+    }
+
+    public long getIterations() {
+        return iterations.sum();
+    }
+
+    public long getLastIterationMillis() {
+        return lastIterationNanos / 1000000;
+    }
+
+    public long getExecutorQueueDepth() {
+        ExecutorService queued = executor;
+        if (queued instanceof ForkJoinPool) {
+            ForkJoinPool pool = (ForkJoinPool) queued;
+            return pool.getQueuedSubmissionCount() + pool.getQueuedTaskCount();
+        }
+        if (queued instanceof ThreadPoolExecutor) {
+            return ((ThreadPoolExecutor) queued).getQueue().size();
+        }
+        return -1;
+    }
+}
+
+/**
+ * =====================================================================================
+ * Headless throughput benchmark, the bench mode of main: plays seeded games with the shipped weights on a number
+ * of threads and reports moves and games per second and the latency of pickMove. Warmup games are played first
+ * on the same threads so the JIT has compiled the player before anything is measured
+ * =====================================================================================
+ */
+class ThroughputBench {
+    // games longer than this are stopped, the shipped weights rarely lose on the standard board
+    static final int DEFAULT_MAX_MOVES = 100000;
+
+    private int numGames;
+    private int numWarmupGames;
+    private int numThreads;
+    private long seed;
+    private int rows;
+    private int cols;
+    private int maxMoves;
+
+    ThroughputBench(int numGames, int numWarmupGames, int numThreads, long seed, int rows, int cols, int maxMoves) {
+        this.numGames = numGames;
+        this.numWarmupGames = numWarmupGames;
+        this.numThreads = numThreads;
+        this.seed = seed;
+        this.rows = rows;
+        this.cols = cols;
+        this.maxMoves = maxMoves;
+    }
+
+    // Result of playing a number of games on every thread
+    private static class Phase {
+        private LatencyHistogram latencies = new LatencyHistogram();
+        private long moves;
+        private long rowsCleared;
+        private long nanos;
+    }
+
+    void run() {
+        System.out.println("Benchmark: " + numGames + " games after " + numWarmupGames + " warmup games on "
+                + numThreads + " threads, " + rows + "x" + cols + " board, at most " + maxMoves + " moves per game");
+        System.out.println("JVM: " + System.getProperty("java.vm.name") + " " + System.getProperty("java.version")
+                + ", " + Runtime.getRuntime().availableProcessors() + " cores, " + System.getProperty("os.arch"));
+
+        long[] gameSeeds = new SeedSequence(seed).gameSeeds(0, numWarmupGames + numGames);
+        PlayerSkeleton[] players = new PlayerSkeleton[numThreads];
+        for (int t = 0; t < numThreads; t++) {
+            players[t] = new PlayerSkeleton();
+        }
+        play(players, gameSeeds, 0, numWarmupGames);
+        Phase phase = play(players, gameSeeds, numWarmupGames, numGames);
+
+        double seconds = phase.nanos / 1e9;
+        System.out.printf("Moves: %d in %.2f s, %.0f moves/s, %.2f games/s, %.1f rows per game%n", phase.moves, seconds,
+                phase.moves / seconds, numGames / seconds, (double) phase.rowsCleared / numGames);
+        LatencyHistogram latencies = phase.latencies;
+        System.out.printf("pickMove latency: p50 %.1f us, p99 %.1f us, p999 %.1f us, max %.1f us%n",
+                latencies.percentile(0.5) / 1e3, latencies.percentile(0.99) / 1e3,
+                latencies.percentile(0.999) / 1e3, latencies.getMax() / 1e3);
+    }
+
+    // Plays games first to first + count - 1, every thread taking the next game when it finishes one
+    private Phase play(PlayerSkeleton[] players, long[] gameSeeds, int first, int count) {
+        Phase phase = new Phase();
+        AtomicInteger nextGame = new AtomicInteger(first);
+        Thread[] threads = new Thread[players.length];
+        Phase[] threadPhases = new Phase[players.length];
+        long start = System.nanoTime();
+        for (int t = 0; t < threads.length; t++) {
+            PlayerSkeleton player = players[t];
+            Phase threadPhase = threadPhases[t] = new Phase();
+            threads[t] = new Thread(() -> {
+                for (int game = nextGame.getAndIncrement(); game < first + count; game = nextGame.getAndIncrement()) {
+                    State s = new State(gameSeeds[game], rows, cols);
+                    while (!s.hasLost() && s.getTurnNumber() < maxMoves) {
+                        long moveStart = System.nanoTime();
+                        int move = player.pickMove(s, s.legalMoves());
+                        threadPhase.latencies.record(System.nanoTime() - moveStart);
+                        s.makeMove(move);
+                    }
+                    threadPhase.moves += s.getTurnNumber();
+                    threadPhase.rowsCleared += s.getRowsCleared();
+                }
+            }, "bench-" + t);
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+        phase.nanos = System.nanoTime() - start;
+        for (Phase threadPhase : threadPhases) {
+            phase.latencies.add(threadPhase.latencies);
+            phase.moves += threadPhase.moves;
+            phase.rowsCleared += threadPhase.rowsCleared;
+        }
+        return phase;
+    }
+}
+
+/**
+ * Histogram of latencies in nanoseconds for percentiles. Values below 2^SUB_BITS are counted exactly; above that
+ * every power of two is split into 2^(SUB_BITS - 1) buckets, so a percentile is at most 1/64 above the true value.
+ * Recording is an array increment, cheap enough to time every move
+ */
+class LatencyHistogram {
+    private static final int SUB_BITS = 7;
+    private static final int HALF = 1 << (SUB_BITS - 1);
+
+    private long[] counts = new long[(64 - SUB_BITS + 3) * HALF];
+    private long total;
+    private long max;
+
+    void record(long nanos) {
+        counts[index(Math.max(nanos, 0))]++;
+        total++;
+        max = Math.max(max, nanos);
+    }
+
+    void add(LatencyHistogram other) {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] += other.counts[i];
+        }
+        total += other.total;
+        max = Math.max(max, other.max);
+    }
+
+    long getMax() {
+        return max;
+    }
+
+    // the smallest value at least the given fraction of the values are at or below, rounded up to its bucket
+    long percentile(double fraction) {
+        long rank = Math.max(1, (long) Math.ceil(fraction * total));
+        long count = 0;
+        for (int i = 0; i < counts.length; i++) {
+            count += counts[i];
+            if (count >= rank) {
+                return Math.min(highestValue(i), max);
+            }
+        }
+        return max;
+    }
+
+    // bucket of a value: its top SUB_BITS bits and how far they were shifted down
+    static int index(long value) {
+        if (value < 2 * HALF) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+        return shift * HALF + (int) (value >>> shift);
+    }
+
+    static long highestValue(int index) {
+        if (index < 2 * HALF) {
+            return index;
+        }
+        int shift = index / HALF - 1;
+        long mantissa = index - shift * HALF;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
+
+/**
+ * Trainer class for {@link PSO}.
+ * Plays a full game NUM_GAME times for each particle and returns the average rows cleared
+ */
+class CallableTrainer implements Callable<Integer> {
+    private Particle particle;
+    // seed of each game, null to play unseeded games
+    private long[] gameSeeds;
+
+    CallableTrainer(Particle particle) {
+        this(particle, null);
+    }
+
+    CallableTrainer(Particle particle, long[] gameSeeds) {
+        this.particle = particle;
+        this.gameSeeds = gameSeeds;
+    }
+
+    public Integer call() {
+        // System.out.println("I think multi-threading is happening"); // check
+
+        // Run the simulation NUM_GAME times per Particle and get average to get best positions
+        double results = 0;
+        int rawResults = 0;
+        for (int gameNum = 0; gameNum < PSO.NUM_GAMES; gameNum++) {
+            GameScore score = playGame(particle, gameSeeds, gameNum);
+            results += score.estimate;    // this will return rows cleared, estimated if the game was truncated
+            rawResults += score.rowsCleared;
+        }
+
+        particle.setRawScore(rawResults / PSO.NUM_GAMES);
+        return (int) (results / PSO.NUM_GAMES);
+    }
+
+    // Plays one game on the training board with the particle's position as weights
+    static GameScore playGame(Particle particle, long[] gameSeeds, int gameNum) {
+        long seed = gameSeeds == null ? SeededPieceSource.randomSeed() : gameSeeds[gameNum];
+        return GameArena.current().play(particle.getPosition(), seed, PSO.BOARD_ROWS, PSO.BOARD_COLS,
+                PSO.MAX_MOVES, PSO.MAX_LINES);
+    }
+}
+
+/**
+ * =====================================================================================
+ * Everything a thread needs to play training games, allocated once per thread and reused for every game it
+ * plays: the player with its features and scratch board, the board, its pieces and the survival estimator.
+ * A game played here gives the same result as one on a new State with the same seed
+ * =====================================================================================
+ */
+class GameArena {
+    private static final ThreadLocal<GameArena> ARENAS = ThreadLocal.withInitial(GameArena::new);
+
+    private PlayerSkeleton player = new PlayerSkeleton();
+    private SeededPieceSource pieces = new SeededPieceSource(0);
+    private State board = new State(pieces);
+    private SurvivalEstimator survival = new SurvivalEstimator(State.ROWS);
+
+    // the arena of the calling thread
+    static GameArena current() {
+        return ARENAS.get();
+    }
+
+    /**
+     * Plays the game on the pieces of the seed with the given weights, truncated after maxMoves moves or maxLines
+     * rows, 0 for no limit
+     */
+    GameScore play(double[] weights, long seed, int rows, int cols, int maxMoves, int maxLines) {
+        pieces.reset(seed);
+        if (board.getRows() != rows || board.getCols() != cols) {
+            board = new State(pieces, rows, cols);
+        } else {
+            board.reset(pieces);
+        }
+        player.updateWeights(weights);
+        if (maxMoves > 0 || maxLines > 0) {
+            survival.reset(rows);
+            return PlayerSkeleton.train(board, player, maxMoves, maxLines, survival);
+        }
+        int rowsCleared = PlayerSkeleton.train(board, player);
+        return new GameScore(rowsCleared, rowsCleared, board.getTurnNumber());
+    }
+}
+
+
+/**
+ * Coordinator side of distributed training. Worker JVMs ({@link GameWorker}) connect to the port, and every
+ * connection gets one game at a time: the weights, the seed of the pieces, the board size and the truncation of
+ * PSO. A game is leased to its connection until the result comes back. Both sides send a heartbeat every
+ * HEARTBEAT_MILLIS, the coordinator while the connection waits for a game and the worker while it plays one, so
+ * if the worker dies, disconnects or is not heard from for LEASE_MILLIS, the connection is dropped and its game
+ * goes back on the queue for another worker. After MAX_ATTEMPTS the game is played in this JVM instead, and so
+ * are the queued games while no worker is connected. A result is only ever counted once
+ *
+ * Protocol, DataOutputStream encoding:
+ *   both sides on connect:   int MAGIC, int VERSION
+ *   coordinator to worker:   long job id, int n, n doubles weights, long seed, int rows, int cols,
+ *                            int maxMoves, int maxLines
+ *                            or long HEARTBEAT, answered by the worker with long HEARTBEAT
+ *   worker to coordinator:   long job id, int rows cleared, double estimate, int moves,
+ *                            after any number of long HEARTBEAT while the game is played
+ */
+class JobServer {
+    static final int MAGIC = 0x54455457;    // "TETW"
+    static final int VERSION = 3;
+    // never a job id
+    static final long HEARTBEAT = -1;
+
+    static int HEARTBEAT_MILLIS = 5000;
+    // how long a worker may go without a heartbeat or a result before it is given up on
+    static int LEASE_MILLIS = 30000;
+    // how long play() waits for a worker to connect before playing the queued games itself
+    static int LOCAL_FALLBACK_MILLIS = 10000;
+    // times a game is handed out before it is played here
+    private static final int MAX_ATTEMPTS = 3;
+
+    private ServerSocket serverSocket;
+    private BlockingQueue<Job> queue = new LinkedBlockingQueue<>();
+    private AtomicLong nextJobId = new AtomicLong();
+    private AtomicInteger numWorkers = new AtomicInteger();
+    // open worker connections, closed with the server so the workers see training is over
+    private Set<Socket> sockets = Collections.synchronizedSet(new HashSet<>());
+
+    // One game of a batch
+    private static class Job {
+        private final long id;
+        private final Batch batch;
+        private final int index;
+        private final double[] weights;
+        private final long seed;
+        private int attempts;
+
+        Job(long id, Batch batch, int index, double[] weights, long seed) {
+            this.id = id;
+            this.batch = batch;
+            this.index = index;
+            this.weights = weights;
+            this.seed = seed;
+        }
+    }
+
+    // The games handed to play(), done when every one of them has a result
+    private static class Batch {
+        private final GameScore[] scores;
+        private final CountDownLatch done;
+
+        Batch(int size) {
+            scores = new GameScore[size];
+            done = new CountDownLatch(size);
+        }
+
+        synchronized boolean isDone(int index) {
+            return scores[index] != null;
+        }
+
+        // first result wins, a game that was retried can come back twice
+        synchronized void complete(int index, GameScore score) {
+            if (scores[index] == null) {
+                scores[index] = score;
+                done.countDown();
+            }
+        }
+    }
+
+    JobServer(int port) throws IOException {
+        serverSocket = new ServerSocket(port);
+        Thread acceptor = new Thread(this::acceptWorkers, "job-server");
+        acceptor.setDaemon(true);
+        acceptor.start();
+        System.out.println("Waiting for workers on port " + serverSocket.getLocalPort());
+    }
+
+    /**
+     * Plays game i with weights[i] on the pieces of seeds[i], on the workers
+     * @return the score of each game
+     */
+    GameScore[] play(double[][] weights, long[] seeds) {
+        Batch batch = new Batch(weights.length);
+        for (int i = 0; i < weights.length; i++) {
+            queue.add(new Job(nextJobId.incrementAndGet(), batch, i, weights[i], seeds[i]));
+        }
+        try {
+            while (!batch.done.await(LOCAL_FALLBACK_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (numWorkers.get() == 0) {
+                    playQueuedGames();
+                }
+            }
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+        return batch.scores;
+    }
+
+    // Plays the queued games on PSO's executor, nobody else is there to take them
+    private void playQueuedGames() {
+        System.out.println("No workers connected, playing " + queue.size() + " queued games here");
+        for (Job job = queue.poll(); job != null; job = queue.poll()) {
+            Job local = job;
+            PSO.sharedExecutor().execute(() -> local.batch.complete(local.index, playHere(local)));
+        }
+    }
+
+    private static GameScore playHere(Job job) {
+        try {
+            return GameArena.current().play(job.weights, job.seed, PSO.BOARD_ROWS, PSO.BOARD_COLS, PSO.MAX_MOVES,
+                    PSO.MAX_LINES);
+        } catch (RuntimeException e) {
+            // the batch would never be done without a score for the game
+            e.printStackTrace();
+            return new GameScore(0, 0);
+        }
+    }
+
+    void close() {
+        try {
+            serverSocket.close();
+            synchronized (sockets) {
+                for (Socket socket : sockets) {
+                    socket.close();
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void acceptWorkers() {
+        while (!serverSocket.isClosed()) {
+            try {
+                Socket socket = serverSocket.accept();
+                sockets.add(socket);
+                Thread connection = new Thread(() -> serve(socket), "job-server-" + socket.getRemoteSocketAddress());
+                connection.setDaemon(true);
+                connection.start();
+            } catch (IOException e) {
+                if (!serverSocket.isClosed()) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    // Hands out games to one worker connection until it fails
+    private void serve(Socket socket) {
+        Job job = null;
+        boolean isConnected = false;
+        try (Socket s = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.flush();
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                System.out.println("Not a worker: " + s.getRemoteSocketAddress());
+                return;
+            }
+            s.setSoTimeout(LEASE_MILLIS);
+            isConnected = true;
+            System.out.println("Worker connected: " + s.getRemoteSocketAddress() + ", " + numWorkers.incrementAndGet()
+                    + " connected");
+
+            while (true) {
+                job = queue.poll(HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+                if (job == null) {
+                    // a worker that died while idle would otherwise only be found out with the next game
+                    out.writeLong(HEARTBEAT);
+                    out.flush();
+                    if (in.readLong() != HEARTBEAT) {
+                        throw new IOException("No heartbeat");
+                    }
+                    continue;
+                }
+                if (job.batch.isDone(job.index)) {
+                    job = null;
+                    continue;
+                }
+                job.attempts++;
+                writeJob(out, job);
+                long id = in.readLong();
+                while (id == HEARTBEAT) {
+                    id = in.readLong();
+                }
+                if (id != job.id) {
+                    throw new IOException("Result for the wrong job");
+                }
+                int rowsCleared = in.readInt();
+                double estimate = in.readDouble();
+                int moves = in.readInt();
+                job.batch.complete(job.index, new GameScore(rowsCleared, estimate, moves));
+                job = null;
+            }
+        } catch (IOException | InterruptedException e) {
+            System.out.println("Worker lost: " + socket.getRemoteSocketAddress() + " (" + e + ")");
+        } finally {
+            sockets.remove(socket);
+            if (isConnected) {
+                numWorkers.decrementAndGet();
+            }
+            if (job != null) {
+                retry(job);
+            }
+        }
+    }
+
+    private void retry(Job job) {
+        if (job.attempts < MAX_ATTEMPTS) {
+            queue.add(job);
+        } else {
+            job.batch.complete(job.index, playHere(job));
+        }
+    }
+
+    private static void writeJob(DataOutputStream out, Job job) throws IOException {
+        out.writeLong(job.id);
+        out.writeInt(job.weights.length);
+        for (double weight : job.weights) {
+            out.writeDouble(weight);
+        }
+        out.writeLong(job.seed);
+        out.writeInt(PSO.BOARD_ROWS);
+        out.writeInt(PSO.BOARD_COLS);
+        out.writeInt(PSO.MAX_MOVES);
+        out.writeInt(PSO.MAX_LINES);
+        out.flush();
+    }
+}
+
+
+/**
+ * Worker side of distributed training, see {@link JobServer} for the protocol. Opens one connection per thread
+ * to the coordinator and plays the games it is given until the coordinator closes the connection
+ */
+class GameWorker {
+    // how long to keep trying to reach a coordinator that is not up yet
+    private static final int CONNECT_ATTEMPTS = 60;
+    private static final int CONNECT_RETRY_MILLIS = 1000;
+
+    // sends the heartbeats of every connection while its game is played
+    private static final ScheduledExecutorService heartbeats = Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+                Thread thread = new Thread(runnable, "game-worker-heartbeat");
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    static void run(String host, int port, int numThreads) {
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < numThreads; i++) {
+            Thread thread = new Thread(() -> work(host, port), "game-worker-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static void work(String host, int port) {
+        Socket socket = connect(host, port);
+        if (socket == null) {
+            System.out.println("No coordinator at " + host + ":" + port);
+            return;
+        }
+        try (Socket s = socket;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+             DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()))) {
+            out.writeInt(JobServer.MAGIC);
+            out.writeInt(JobServer.VERSION);
+            out.flush();
+            if (in.readInt() != JobServer.MAGIC || in.readInt() != JobServer.VERSION) {
+                System.out.println("Not a coordinator: " + host + ":" + port);
+                return;
+            }
+
+            while (true) {
+                long id;
+                try {
+                    id = in.readLong();
+                } catch (EOFException e) {
+                    return;     // training is over
+                }
+                if (id == JobServer.HEARTBEAT) {
+                    out.writeLong(JobServer.HEARTBEAT);
+                    out.flush();
+                    continue;
+                }
+                double[] weights = new double[in.readInt()];
+                for (int i = 0; i < weights.length; i++) {
+                    weights[i] = in.readDouble();
+                }
+                long seed = in.readLong();
+                int rows = in.readInt();
+                int cols = in.readInt();
+                int maxMoves = in.readInt();
+                int maxLines = in.readInt();
+
+                ScheduledFuture<?> heartbeat = heartbeats.scheduleAtFixedRate(() -> {
+                    try {
+                        synchronized (out) {
+                            out.writeLong(JobServer.HEARTBEAT);
+                            out.flush();
+                        }
+                    } catch (IOException e) {
+                        // the game's result will not get through either and ends the connection
+                    }
+                }, JobServer.HEARTBEAT_MILLIS, JobServer.HEARTBEAT_MILLIS, TimeUnit.MILLISECONDS);
+                GameScore score;
+                try {
+                    score = GameArena.current().play(weights, seed, rows, cols, maxMoves, maxLines);
+                } finally {
+                    heartbeat.cancel(false);
+                }
+                synchronized (out) {
+                    out.writeLong(id);
+                    out.writeInt(score.rowsCleared);
+                    out.writeDouble(score.estimate);
+                    out.writeInt(score.moves);
+                    out.flush();
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Coordinator lost: " + e);
+        }
+    }
+
+    private static Socket connect(String host, int port) {
+        for (int attempt = 0; attempt < CONNECT_ATTEMPTS; attempt++) {
+            try {
+                return new Socket(host, port);
+            } catch (IOException e) {
+                try {
+                    Thread.sleep(CONNECT_RETRY_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+}
+
+
+/**
+ * Score of one game: the rows it cleared, and the rows the full game is estimated to clear when it was truncated
+ */
+class GameScore {
+    final int rowsCleared;
+    final double estimate;
+    // moves played before the game was lost or truncated
+    final int moves;
+
+    GameScore(int rowsCleared, double estimate) {
+        this(rowsCleared, estimate, 0);
+    }
+
+    GameScore(int rowsCleared, double estimate, int moves) {
+        this.rowsCleared = rowsCleared;
+        this.estimate = estimate;
+        this.moves = moves;
+    }
+}
+
+
+/**
+ * Estimates the rows a truncated game would clear if it were played to the end, from the max height after
+ * every move. A good player loses through a rare spike in height rather than through a steady climb, so a game
+ * is modelled as a constant per-move hazard of the board filling up to deathHeight. Above the median the number
+ * of moves at each height falls off geometrically, so the log of the counts is fitted with a line and
+ * extrapolated to deathHeight. The game then lasts another 1 / hazard moves on average, clearing rows at the
+ * rate seen so far
+ */
+class SurvivalEstimator {
+    // heights seen fewer times than this are too noisy to fit
+    private static final int MIN_COUNT = 10;
+    // a truncated game is extrapolated to at most this many times the moves it already played, so one lucky
+    // fit cannot rank a particle above the ones that really cleared more rows
+    private static final double MAX_EXTRAPOLATION = 4;
+
+    private int deathHeight;
+    private int[] heightCounts;
+    private int moves;
+
+    SurvivalEstimator(int deathHeight) {
+        this.deathHeight = deathHeight;
+        heightCounts = new int[deathHeight + 1];
+    }
+
+    // forgets the heights recorded so far, to estimate another game
+    void reset(int deathHeight) {
+        if (deathHeight != this.deathHeight) {
+            this.deathHeight = deathHeight;
+            heightCounts = new int[deathHeight + 1];
+        } else {
+            Arrays.fill(heightCounts, 0);
+        }
+        moves = 0;
+    }
+
+    void record(int maxHeight) {
+        heightCounts[Math.min(maxHeight, deathHeight)]++;
+        moves++;
+    }
+
+    // per-move probability of the board filling up to deathHeight, 0 when the heights give no usable fit
+    double hazard() {
+        if (moves == 0) {
+            return 0;
+        }
+        int median = 0;
+        int count = 0;
+        while (count + heightCounts[median] <= moves / 2) {
+            count += heightCounts[median++];
+        }
+
+        // least squares fit of log(count) = a + b * height over the heights above the median seen often enough
+        int n = 0;
+        double sumH = 0, sumLog = 0, sumHH = 0, sumHLog = 0;
+        for (int h = median; h < deathHeight && heightCounts[h] >= MIN_COUNT; h++) {
+            double log = Math.log(heightCounts[h]);
+            n++;
+            sumH += h;
+            sumLog += log;
+            sumHH += (double) h * h;
+            sumHLog += h * log;
+        }
+        if (n < 2) {
+            return 0;
+        }
+        double slope = (n * sumHLog - sumH * sumLog) / (n * sumHH - sumH * sumH);
+        if (slope >= 0) {
+            return 0;
+        }
+        double intercept = (sumLog - slope * sumH) / n;
+        double hazard = Math.exp(intercept + slope * deathHeight) / moves;
+
+        return Math.min(1, Math.max(hazard, 1 / (moves * MAX_EXTRAPOLATION)));
+    }
+
+    // rows cleared when the heights cannot be extrapolated, e.g. in a game cut off early
+    double estimate(int rowsCleared, int turns) {
+        double hazard = turns == 0 ? 0 : hazard();
+        if (hazard == 0) {
+            return rowsCleared;
+        }
+        return rowsCleared + (double) rowsCleared / turns * (1 - hazard) / hazard;
+    }
+}
+
+
+/**
+ * Racing evaluation for {@link PSO}. The games are played in rounds of one game per particle still in the race.
+ * After each round a particle drops out when the upper confidence bound of its average cannot beat the global
+ * best, or cannot beat the lower bounds of the top k particles. The games it no longer plays go to the particles
+ * still racing, up to maxGames each, so an iteration never plays more games than NUM_GAMES per particle.
+ * Rows cleared in a game are close to exponentially distributed, so the standard deviation is taken to be at
+ * least the average
+ */
+class RacingEvaluator {
+    // z of the confidence bounds, about 97.7% one-sided
+    private static final double Z = 2.0;
+
+    private int topK;
+    // games every particle plays before it can drop out
+    private int minGames;
+    // games a particle plays at most when others dropped out
+    private int maxGames;
+
+    private int gamesPlayed;
+
+    RacingEvaluator(int topK, int minGames, int maxGames) {
+        this.topK = topK;
+        this.minGames = minGames;
+        this.maxGames = maxGames;
+    }
+
+    /**
+     * Races the particles on the given games
+     * @return average rows cleared of the games each particle played
+     */
+    int[] evaluate(Particle[] particles, long[] gameSeeds, int globalBest, ExecutorService executor) {
+        int numParticles = particles.length;
+        int budget = numParticles * PSO.NUM_GAMES;
+        double[] sums = new double[numParticles];
+        double[] sumsOfSquares = new double[numParticles];
+        int[] games = new int[numParticles];
+        int[] rawSums = new int[numParticles];
+        boolean[] isRacing = new boolean[numParticles];
+        Arrays.fill(isRacing, true);
+        int racing = numParticles;
+
+        gamesPlayed = 0;
+        for (int round = 0; round < maxGames && racing > 0 && gamesPlayed + racing <= budget; round++) {
+            playRound(particles, gameSeeds, round, isRacing, sums, sumsOfSquares, rawSums, games, executor);
+            gamesPlayed += racing;
+            if (round + 1 < minGames) {
+                continue;
+            }
+
+            // the k-th best lower bound, a particle that cannot reach it is not in the top k
+            double[] lowerBounds = new double[racing];
+            int j = 0;
+            for (int i = 0; i < numParticles; i++) {
+                if (isRacing[i]) {
+                    lowerBounds[j++] = bound(sums[i], sumsOfSquares[i], games[i], -Z);
+                }
+            }
+            Arrays.sort(lowerBounds);
+            double threshold = Math.max(globalBest, lowerBounds[Math.max(0, racing - topK)]);
+
+            for (int i = 0; i < numParticles; i++) {
+                if (isRacing[i] && bound(sums[i], sumsOfSquares[i], games[i], Z) < threshold) {
+                    isRacing[i] = false;
+                    racing--;
+                }
+            }
+        }
+
+        int[] scoreForAll = new int[numParticles];
+        for (int i = 0; i < numParticles; i++) {
+            // every game of the particle failed, its stack traces were printed by playRound. A score of 0 never
+            // improves a best, so the particle only moves
+            if (games[i] == 0) {
+                System.out.println("Racing: particle " + i + " has no finished games, scored 0");
+                particles[i].setRawScore(0);
+                continue;
+            }
+            scoreForAll[i] = (int) (sums[i] / games[i]);
+            particles[i].setRawScore(rawSums[i] / games[i]);
+        }
+        return scoreForAll;
+    }
+
+    // Plays the given game with every particle still racing, each in its own thread
+    private void playRound(Particle[] particles, long[] gameSeeds, int round, boolean[] isRacing, double[] sums,
+                           double[] sumsOfSquares, int[] rawSums, int[] games, ExecutorService executor) {
+        List<Future<GameScore>> futureList = new ArrayList<>();
+        for (int i = 0; i < particles.length; i++) {
+            if (isRacing[i]) {
+                Particle particle = particles[i];
+                futureList.add(executor.submit(() -> CallableTrainer.playGame(particle, gameSeeds, round)));
+            } else {
+                futureList.add(null);
+            }
+        }
+
+        for (int i = 0; i < particles.length; i++) {
+            Future<GameScore> future = futureList.get(i);
+            if (future == null) {
+                continue;
+            }
+            try {
+                GameScore gameScore = future.get();
+                double score = gameScore.estimate;
+                rawSums[i] += gameScore.rowsCleared;
+                sums[i] += score;
+                sumsOfSquares[i] += score * score;
+                games[i]++;
+            } catch (InterruptedException | ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // Confidence bound of the average, the upper bound for a positive z and the lower bound for a negative one
+    private static double bound(double sum, double sumOfSquares, int games, double z) {
+        if (games == 0) {
+            return z > 0 ? Double.POSITIVE_INFINITY : 0;
+        }
+        double mean = sum / games;
+        double variance = games > 1 ? (sumOfSquares - sum * mean) / (games - 1) : 0;
+        double deviation = Math.max(Math.sqrt(Math.max(variance, 0)), mean);
+        return Math.max(0, mean + z * deviation / Math.sqrt(games));
+    }
+
+    int getMaxGames() {
+        return maxGames;
+    }
+
+    // games played in the last evaluation
+    int getGamesPlayed() {
+        return gamesPlayed;
+    }
+}
+
+
+/**
+ * Seeds of a reproducible training run, all derived from one seed. The seed of a game depends only on the
+ * iteration and the game number, so every particle plays the same games in an iteration no matter which
+ * thread runs it or when
+ */
+class SeedSequence {
+    // separate streams so the seeds of games, particles and the swarm never coincide
+    private static final long GAMES = 1;
+    private static final long PARTICLES = 2;
+    private static final long SWARM = 3;
+
+    private final long seed;
+
+    SeedSequence(long seed) {
+        this.seed = seed;
+    }
+
+    long getSeed() {
+        return seed;
+    }
+
+    long[] gameSeeds(int iteration, int numGames) {
+        long[] gameSeeds = new long[numGames];
+        for (int game = 0; game < numGames; game++) {
+            gameSeeds[game] = derive(GAMES, (long) iteration * numGames + game);
+        }
+        return gameSeeds;
+    }
+
+    long particleSeed(int particle) {
+        return derive(PARTICLES, particle);
+    }
+
+    long swarmSeed() {
+        return derive(SWARM, 0);
+    }
+
+    private long derive(long stream, long index) {
+        return SeededPieceSource.mix64(seed ^ SeededPieceSource.mix64(stream * 0x9e3779b97f4a7c15L + index));
+    }
+}
+
+
+/**
  * Particle for the {@link PSO} class
  */
 class Particle {
-    // Using values obtained from Meta Optimization
-    public static double INERTIA = 0.6345602753864532;
-    public static double COGNITIVE_PARAMETER = 1.925758898746099;
-    public static double SOCIAL_PARAMETER = 2.642741397865409;
+    // Using values obtained from Meta Optimization, the defaults of every PSO
+    static final double INERTIA = 0.6345602753864532;
+    static final double COGNITIVE_PARAMETER = 1.925758898746099;
+    static final double SOCIAL_PARAMETER = 2.642741397865409;
 
     private double[] position;
     private double[] velocity;
@@ -967,10 +4786,21 @@ class Particle {
     private double personalBest;
     private double[] personalBestPositions;
 
+    private SwarmRandom random;
+
+    // average rows cleared in the particle's last games before they were truncated
+    private int rawScore;
+
     Particle(double[] position, double[] velocity) {
+        this(position, velocity, new SwarmRandom(SeededPieceSource.randomSeed()));
+    }
+
+    // Constructor with the particle's own random numbers, for reproducible runs
+    Particle(double[] position, double[] velocity, SwarmRandom random) {
         personalBest = 0;
         this.position = position;
         this.velocity = velocity;
+        this.random = random;
         personalBestPositions = new double[position.length];
     }
 
@@ -982,12 +4812,13 @@ class Particle {
         }
     }
 
-    void updateVelocity(double[] globalBestPositions, int upperBound, int lowerBound) {
-        Random random = new Random();
+    // moves the velocity towards the personal and global bests, with the parameters of the particle's swarm
+    void updateVelocity(double[] globalBestPositions, double inertia, double cognitiveParameter,
+                        double socialParameter, int upperBound, int lowerBound) {
         for (int i = 0; i < velocity.length; i++) {
-            velocity[i] = INERTIA * velocity[i]
-                        + COGNITIVE_PARAMETER * (personalBestPositions[i] - position[i]) * random.nextDouble()
-                        + SOCIAL_PARAMETER * (globalBestPositions[i] - position[i]) * random.nextDouble();
+            velocity[i] = inertia * velocity[i]
+                        + cognitiveParameter * (personalBestPositions[i] - position[i]) * random.nextDouble()
+                        + socialParameter * (globalBestPositions[i] - position[i]) * random.nextDouble();
             // check if velocity out of range
             if (velocity[i] > upperBound) {
                 velocity[i] = upperBound;
@@ -1012,4 +4843,243 @@ class Particle {
     double[] getPosition() {
         return position;
     }
+
+    int getRawScore() {
+        return rawScore;
+    }
+
+    void setRawScore(int rawScore) {
+        this.rawScore = rawScore;
+    }
+
+    double getPersonalBest() {
+        return personalBest;
+    }
+
+    // Moves the particle to a migrant from another swarm, keeping its velocity
+    void replaceWith(double[] position, double score) {
+        this.position = ArrayHelper.deepCopy(position);
+        personalBest = score;
+        personalBestPositions = ArrayHelper.deepCopy(position);
+    }
+
+    // Writes everything about the particle to a checkpoint
+    void writeTo(DataOutputStream out) throws IOException {
+        Checkpointer.writeDoubles(out, position);
+        Checkpointer.writeDoubles(out, velocity);
+        out.writeDouble(personalBest);
+        Checkpointer.writeDoubles(out, personalBestPositions);
+        out.writeInt(rawScore);
+        out.writeLong(random.getState());
+    }
+
+    // Reads a particle written by writeTo
+    static Particle readFrom(DataInputStream in) throws IOException {
+        double[] position = Checkpointer.readDoubles(in);
+        double[] velocity = Checkpointer.readDoubles(in);
+        Particle particle = new Particle(position, velocity, new SwarmRandom(0));
+        particle.personalBest = in.readDouble();
+        particle.personalBestPositions = Checkpointer.readDoubles(in);
+        particle.rawScore = in.readInt();
+        particle.random.setState(in.readLong());
+        return particle;
+    }
+}
+
+
+/**
+ * Random numbers with all of their state in one long, so a checkpoint can save them and carry on with exactly
+ * the same numbers. Uses the same SplitMix64 steps as {@link SeededPieceSource}
+ */
+class SwarmRandom extends Random {
+    private static final long serialVersionUID = 1L;
+
+    private long state;
+
+    SwarmRandom(long seed) {
+        super(0);
+        state = seed;
+    }
+
+    @Override
+    protected int next(int bits) {
+        return (int) (nextLong() >>> (64 - bits));
+    }
+
+    @Override
+    public long nextLong() {
+        return SeededPieceSource.mix64(state += SeededPieceSource.GOLDEN_GAMMA);
+    }
+
+    long getState() {
+        return state;
+    }
+
+    void setState(long state) {
+        this.state = state;
+    }
+}
+
+
+/**
+ * Binary checkpoints of training. A checkpoint holds the state of the meta optimization, if one is running,
+ * and the state of the swarm it runs. The training thread only serializes the state into a few kilobytes; a
+ * background thread writes them to a temporary file and renames it over the checkpoint, so a crash in the middle
+ * of a write leaves the previous checkpoint whole. If writes fall behind, only the latest checkpoint is written.
+ * Layout: magic, version, meta state and swarm state (each as a length, -1 for none, then the bytes), CRC32
+ */
+class Checkpointer {
+    private static final int MAGIC = 0x54455443;    // "TETC"
+    private static final int VERSION = 1;
+
+    private File file;
+    private ExecutorService writer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "checkpoint-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private AtomicReference<byte[]> pending = new AtomicReference<>();
+
+    // written in front of every swarm state, null when not meta optimizing
+    private byte[] metaState;
+
+    /**
+     * The state read back from a checkpoint file
+     */
+    static class Checkpoint {
+        final byte[] metaState;
+        final byte[] swarmState;
+
+        Checkpoint(byte[] metaState, byte[] swarmState) {
+            this.metaState = metaState;
+            this.swarmState = swarmState;
+        }
+    }
+
+    Checkpointer(String path) {
+        file = new File(path);
+    }
+
+    // Carries on with the meta optimization state of a loaded checkpoint, every later save keeps it
+    synchronized void resume(byte[] metaState) {
+        this.metaState = metaState;
+    }
+
+    // A new swarm is started by the meta optimization, the checkpoint has no swarm state until it saves one
+    synchronized void saveMetaState(byte[] metaState) {
+        this.metaState = metaState;
+        save(null);
+    }
+
+    synchronized void saveSwarmState(byte[] swarmState) {
+        save(swarmState);
+    }
+
+    private void save(byte[] swarmState) {
+        pending.set(encode(metaState, swarmState));
+        writer.execute(this::writePending);
+    }
+
+    private void writePending() {
+        byte[] bytes = pending.getAndSet(null);
+        if (bytes == null) {
+            return;     // an earlier task already wrote this one
+        }
+        File temp = new File(file.getPath() + ".tmp");
+        try {
+            try (FileOutputStream out = new FileOutputStream(temp)) {
+                out.write(bytes);
+                out.getFD().sync();
+            }
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Reads the last checkpoint, null if there is none or it is not a valid checkpoint
+    Checkpoint load() {
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                System.out.println("Not a checkpoint: " + file);
+                return null;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(bytes, 0, bytes.length - 8);
+            long expected = new DataInputStream(new ByteArrayInputStream(bytes, bytes.length - 8, 8)).readLong();
+            if (crc.getValue() != expected) {
+                System.out.println("Corrupt checkpoint: " + file);
+                return null;
+            }
+            return new Checkpoint(readBytes(in), readBytes(in));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+
+    // Waits for the last checkpoint to be written
+    void close() {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static byte[] encode(byte[] metaState, byte[] swarmState) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeBytes(out, metaState);
+            writeBytes(out, swarmState);
+            out.flush();
+            CRC32 crc = new CRC32();
+            crc.update(bytes.toByteArray());
+            out.writeLong(crc.getValue());
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] values) throws IOException {
+        out.writeInt(values == null ? -1 : values.length);
+        if (values != null) {
+            out.write(values);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] values = new byte[length];
+        in.readFully(values);
+        return values;
+    }
+
+    static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+        out.writeInt(values.length);
+        for (double value : values) {
+            out.writeDouble(value);
+        }
+    }
+
+    static double[] readDoubles(DataInputStream in) throws IOException {
+        double[] values = new double[in.readInt()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readDouble();
+        }
+        return values;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,68 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pieces from a SplitMix64 generator owned by a single game. Nothing is shared or synchronized
+ * between games, and the pieces are generated in bulk into a ring buffer ahead of the game
+ */
+class SeededPieceSource implements PieceSource {
+	static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+	private static final int BUFFER_SIZE = 1024;
+
+	//only touched once per game to pick a seed, never per move
+	private static final AtomicLong seedUniquifier = new AtomicLong(System.nanoTime());
+
+	private long seed;
+	private long state;
+
+	//pieces generated ahead of the game
+	private final byte[] buffer = new byte[BUFFER_SIZE];
+	private int next = BUFFER_SIZE;
+
+	SeededPieceSource(long seed) {
+		this.seed = seed;
+		this.state = seed;
+	}
+
+	//a seed for games that do not need to be reproduced
+	static long randomSeed() {
+		return mix64(seedUniquifier.addAndGet(GOLDEN_GAMMA) ^ System.nanoTime());
+	}
+
+	long getSeed() {
+		return seed;
+	}
+
+	//starts over with another seed, the same pieces as a new source with that seed
+	void reset(long seed) {
+		this.seed = seed;
+		this.state = seed;
+		next = BUFFER_SIZE;
+	}
+
+	public int nextPiece() {
+		if (next == BUFFER_SIZE) {
+			fill();
+		}
+		return buffer[next++];
+	}
+
+	//two pieces from each 64 bit value, using the high bits of a 32 bit multiply so no division is needed
+	private void fill() {
+		for (int i = 0; i < BUFFER_SIZE; i += 2) {
+			long bits = nextLong();
+			buffer[i] = (byte) (((bits >>> 32) * State.N_PIECES) >>> 32);
+			buffer[i + 1] = (byte) (((bits & 0xffffffffL) * State.N_PIECES) >>> 32);
+		}
+		next = 0;
+	}
+
+	long nextLong() {
+		return mix64(state += GOLDEN_GAMMA);
+	}
+
+	static long mix64(long z) {
+		z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+		z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+		return z ^ (z >>> 31);
+	}
+}
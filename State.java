@@ -7,6 +7,12 @@ public class State {
 	public static final int COLS = 10;
 	public static final int ROWS = 21;
 	public static final int N_PIECES = 7;
+	
+	//bounds of the board sizes a game can be played on, the players keep rows and columns as int bitmasks
+	public static final int MIN_COLS = 4;
+	public static final int MAX_COLS = 30;
+	public static final int MIN_ROWS = 5;
+	public static final int MAX_ROWS = 29;
 
 	
 
@@ -22,20 +28,30 @@ public class State {
 	private int turn = 0;
 	private int cleared = 0;
 	
+	//size of the board of this game, ROWS by COLS unless given
+	private final int rows;
+	private final int cols;
+	
 	//each square in the grid - int means empty - other values mean the turn it was placed
-	private int[][] field = new int[ROWS][COLS];
+	private int[][] field;
 	//top row+1 of each column
 	//0 means empty
-	private int[] top = new int[COLS];
+	private int[] top;
 	
 	
 	//number of next piece
 	protected int nextPiece;
 	
+	//where the pieces come from
+	private PieceSource pieces;
+	
 	
 	
 	//all legal moves - first index is piece type - then a list of 2-length arrays
-	protected static int[][][] legalMoves = new int[N_PIECES][][];
+	protected static int[][][] legalMoves;
+	
+	//legal moves on the board of this game, the same as legalMoves on a board COLS wide
+	private int[][][] moves;
 	
 	//indices for legalMoves
 	public static final int ORIENT = 0;
@@ -84,15 +100,21 @@ public class State {
 		{{2,2,1},{2,3}}
 	};
 	
-	//initialize legalMoves
-	{
+	//initialize legalMoves once, it is the same table for every standard game
+	static {
+		legalMoves = buildLegalMoves(COLS);
+	}
+	
+	//legal moves on a board cols wide
+	static int[][][] buildLegalMoves(int cols) {
+		int[][][] legalMoves = new int[N_PIECES][][];
 		//for each piece type
 		for(int i = 0; i < N_PIECES; i++) {
 			//figure number of legal moves
 			int n = 0;
 			for(int j = 0; j < pOrients[i]; j++) {
 				//number of locations in this orientation
-				n += COLS+1-pWidth[i][j];
+				n += cols+1-pWidth[i][j];
 			}
 			//allocate space
 			legalMoves[i] = new int[n][2];
@@ -100,14 +122,14 @@ public class State {
 			n = 0;
 			for(int j = 0; j < pOrients[i]; j++) {
 				//for each slot
-				for(int k = 0; k < COLS+1-pWidth[i][j];k++) {
+				for(int k = 0; k < cols+1-pWidth[i][j];k++) {
 					legalMoves[i][n][ORIENT] = j;
 					legalMoves[i][n][SLOT] = k;
 					n++;
 				}
 			}
 		}
-	
+		return legalMoves;
 	}
 	
 	
@@ -118,6 +140,14 @@ public class State {
 	public int[] getTop() {
 		return top;
 	}
+	
+	public int getRows() {
+		return rows;
+	}
+	
+	public int getCols() {
+		return cols;
+	}
 
     public static int[] getpOrients() {
         return pOrients;
@@ -160,13 +190,79 @@ public class State {
 	
 	//constructor
 	public State() {
+		this(new SeededPieceSource(SeededPieceSource.randomSeed()));
+	}
+	
+	//constructor for a reproducible game, the same seed always gives the same pieces
+	public State(long seed) {
+		this(new SeededPieceSource(seed));
+	}
+	
+	//constructor for a reproducible game on a board of another size, rows and cols within MIN and MAX
+	public State(long seed, int rows, int cols) {
+		this(new SeededPieceSource(seed), rows, cols);
+	}
+	
+	//constructor with any source of pieces
+	State(PieceSource pieces) {
+		this(pieces, ROWS, COLS);
+	}
+	
+	State(PieceSource pieces, int rows, int cols) {
+		if(rows < MIN_ROWS || rows > MAX_ROWS || cols < MIN_COLS || cols > MAX_COLS) {
+			throw new IllegalArgumentException("Board size out of range: " + rows + "x" + cols);
+		}
+		this.rows = rows;
+		this.cols = cols;
+		field = new int[rows][cols];
+		top = new int[cols];
+		moves = cols == COLS ? legalMoves : buildLegalMoves(cols);
+		this.pieces = pieces;
+		nextPiece = randomPiece();
+	}
+	
+	//starts a new game on this board with other pieces, so one board can play many games
+	void reset(PieceSource pieces) {
+		lost = false;
+		turn = 0;
+		cleared = 0;
+		for(int r = 0; r < rows; r++) {
+			for(int c = 0; c < cols; c++) {
+				field[r][c] = 0;
+			}
+		}
+		for(int c = 0; c < cols; c++) {
+			top[c] = 0;
+		}
+		this.pieces = pieces;
 		nextPiece = randomPiece();
-
+	}
+	
+	//sets the board to a recorded one, bit c of rowMasks[r] for a filled cell (r, c), keeping the next piece
+	void restore(int turn, int cleared, int[] rowMasks) {
+		this.turn = turn;
+		this.cleared = cleared;
+		for(int c = 0; c < cols; c++) {
+			top[c] = 0;
+		}
+		for(int r = 0; r < rows; r++) {
+			for(int c = 0; c < cols; c++) {
+				boolean filled = r < rowMasks.length && (rowMasks[r] & (1 << c)) != 0;
+				field[r][c] = filled ? turn : 0;
+				if(filled) {
+					top[c] = r+1;
+				}
+			}
+		}
 	}
 	
 	//random integer, returns 0-6
 	private int randomPiece() {
-		return (int)(Math.random()*N_PIECES);
+		return pieces.nextPiece();
+	}
+	
+	PieceSource getPieceSource() {
+		return pieces;
 	}
 	
 
@@ -174,12 +270,12 @@ public class State {
 	
 	//gives legal moves for 
 	public int[][] legalMoves() {
-		return legalMoves[nextPiece];
+		return moves[nextPiece];
 	}
 	
 	//make a move based on the move index - its order in the legalMoves list
 	public void makeMove(int move) {
-		makeMove(legalMoves[nextPiece][move]);
+		makeMove(moves[nextPiece][move]);
 	}
 	
 	//make a move based on an array of orient and slot
@@ -198,7 +294,7 @@ public class State {
 		}
 		
 		//check if game ended
-		if(height+pHeight[nextPiece][orient] >= ROWS) {
+		if(height+pHeight[nextPiece][orient] >= rows) {
 			lost = true;
 			return false;
 		}
@@ -224,7 +320,7 @@ public class State {
 		for(int r = height+pHeight[nextPiece][orient]-1; r >= height; r--) {
 			//check all columns in the row
 			boolean full = true;
-			for(int c = 0; c < COLS; c++) {
+			for(int c = 0; c < cols; c++) {
 				if(field[r][c] == 0) {
 					full = false;
 					break;
@@ -235,7 +331,7 @@ public class State {
 				rowsCleared++;
 				cleared++;
 				//for each column
-				for(int c = 0; c < COLS; c++) {
+				for(int c = 0; c < cols; c++) {
 
 					//slide down all bricks
 					for(int i = r; i < top[c]; i++) {
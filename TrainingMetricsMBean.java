@@ -0,0 +1,29 @@
+/**
+ * Attributes of {@link TrainingMetrics} published over JMX as tetris:type=TrainingMetrics, e.g. to jconsole.
+ * JMX only takes public MBean interfaces, hence its own file
+ */
+public interface TrainingMetricsMBean {
+    // totals of the games this JVM finished, and of the moves of games in flight up to their last flush
+    long getMovesSimulated();
+
+    long getBoardsEvaluated();
+
+    long getLinesCleared();
+
+    long getGamesPlayed();
+
+    int getGamesInFlight();
+
+    // age of the oldest game still being played
+    long getLongestRunningGameMillis();
+
+    // moves of the longest game finished
+    long getLongestGameMoves();
+
+    long getIterations();
+
+    long getLastIterationMillis();
+
+    // tasks waiting in the training executor, -1 without one
+    long getExecutorQueueDepth();
+}
@@ -0,0 +1,158 @@
+import bench.TetrisFixture;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * {@link TetrisFixture} for the JMH benchmarks. Sits in the default package next to the simulation
+ * so it can reach the package private classes.
+ * The corpus boards come from seeded games of the shipped weights, with some random moves mixed in
+ * to push the higher corpora up, and are cycled through so no single board gets hot in the caches
+ */
+public class BenchmarkFixture implements TetrisFixture {
+    private static final int CORPUS_SIZE = 64;
+    private static final int RECORDED_MOVES = 20000;
+
+    private PlayerSkeleton player = new PlayerSkeleton();
+
+    private List<State> boards = new ArrayList<>();
+    private List<StateCopy> candidates = new ArrayList<>();
+    private int next = 0;
+
+    private Feature feature;
+    private FusedEvaluator evaluator = new FusedEvaluator();
+
+    // the recorded game for stateMakeMove
+    private long seed;
+    private int[] recordedMoves;
+    private int recordedLength;
+    private State recorded;
+    private int recordedIndex;
+
+    // the game of playMoves
+    private State game;
+    private long gameSeed;
+
+    public void setUp(long seed, String heights) {
+        this.seed = seed;
+        sampleCorpus(seed, heights);
+        recordGame(seed);
+        gameSeed = seed;
+        game = new State(gameSeed);
+    }
+
+    private void sampleCorpus(long seed, String heights) {
+        int minHeight;
+        int maxHeight;
+        double noise;   // chance of a random move
+        if (LOW.equals(heights)) {
+            minHeight = 0;
+            maxHeight = 6;
+            noise = 0.0;
+        } else if (MID.equals(heights)) {
+            minHeight = 7;
+            maxHeight = 12;
+            noise = 0.2;
+        } else if (HIGH.equals(heights)) {
+            minHeight = 13;
+            maxHeight = State.ROWS - 1;
+            noise = 0.5;
+        } else {
+            throw new IllegalArgumentException("Unknown heights: " + heights);
+        }
+
+        Random random = new Random(seed);
+        for (long gameNum = seed; boards.size() < CORPUS_SIZE; gameNum++) {
+            State s = new State(gameNum);
+            int minTurns = 20 + random.nextInt(200);
+            while (!s.hasLost()) {
+                int height = maxHeight(s.getTop());
+                if (s.getTurnNumber() >= minTurns && height >= minHeight && height <= maxHeight) {
+                    boards.add(s);
+                    StateCopy candidate = new StateCopy(s);
+                    candidate.makeMove(player.pickMove(s, s.legalMoves()));
+                    candidates.add(candidate);
+                    break;
+                }
+                if (random.nextDouble() < noise) {
+                    s.makeMove(random.nextInt(s.legalMoves().length));
+                } else {
+                    s.makeMove(player.pickMove(s, s.legalMoves()));
+                }
+            }
+        }
+    }
+
+    private void recordGame(long seed) {
+        recordedMoves = new int[RECORDED_MOVES];
+        State s = new State(seed);
+        recordedLength = 0;
+        while (!s.hasLost() && recordedLength < RECORDED_MOVES) {
+            int move = player.pickMove(s, s.legalMoves());
+            recordedMoves[recordedLength++] = move;
+            s.makeMove(move);
+        }
+        recorded = new State(seed);
+        recordedIndex = 0;
+    }
+
+    private static int maxHeight(int[] top) {
+        int height = 0;
+        for (int t : top) {
+            height = Math.max(height, t);
+        }
+        return height;
+    }
+
+    private int nextBoard() {
+        int board = next;
+        next = next + 1 == boards.size() ? 0 : next + 1;
+        return board;
+    }
+
+    public void selectFeature(String featureClass) {
+        try {
+            feature = (Feature) Class.forName(featureClass).newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Unknown feature: " + featureClass, e);
+        }
+    }
+
+    public int stateMakeMove() {
+        if (recordedIndex == recordedLength) {
+            // the replayed game has the same seed, so it gets the same pieces
+            recorded = new State(seed);
+            recordedIndex = 0;
+        }
+        recorded.makeMove(recordedMoves[recordedIndex++]);
+        return recorded.getTurnNumber();
+    }
+
+    public Object copyState() {
+        return new StateCopy(boards.get(nextBoard()));
+    }
+
+    public double runFeature() {
+        return feature.run(candidates.get(nextBoard()));
+    }
+
+    public double evaluate() {
+        return evaluator.evaluate(candidates.get(nextBoard()), player.getWeights());
+    }
+
+    public int pickMove() {
+        State s = boards.get(nextBoard());
+        return player.pickMove(s, s.legalMoves());
+    }
+
+    public int playMoves(int moves) {
+        for (int i = 0; i < moves; i++) {
+            if (game.hasLost()) {
+                game = new State(++gameSeed);
+            }
+            game.makeMove(player.pickMove(game, game.legalMoves()));
+        }
+        return game.getRowsCleared();
+    }
+}
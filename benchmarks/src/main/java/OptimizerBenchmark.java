@@ -0,0 +1,321 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Time-to-target benchmark of the optimizers. Every configured optimizer trains on the same seeded games until
+ * it has simulated a budget of moves or used a budget of CPU time, and after every iteration the best score so
+ * far is recorded against the moves, games, CPU and wall time spent. The report gives the curves, the cost of
+ * reaching each target score and the core utilization, as CSV (one line per iteration) and JSON (per run), so
+ * the files can be diffed between releases.
+ * Every config first trains for a discarded warmup budget, so the first one measured does not pay for the JIT.
+ * A budget is only checked between iterations, and an iteration is a whole batch of games (hundreds for PSO, tens
+ * for CMA-ES), so the last iteration of a run overshoots it by an amount that depends on the optimizer. Only the
+ * iterations within the budget count towards the best score and the targets; the overshoot is reported apart.
+ * Sits in the default package next to the simulation so it can reach the package private optimizers.
+ *
+ * java -cp benchmarks/target/benchmarks.jar OptimizerBenchmark [options] [config ...]
+ *   -moves n         budget of simulated moves per run, default 20000000
+ *   -cpu seconds     budget of process CPU time per run, 0 for none
+ *   -warmup n        moves every config trains for before the measured runs, default 2000000
+ *   -seeds a,b       seeds of the runs, every config runs once per seed, default 3243
+ *   -games n         games per weight vector, PSO.NUM_GAMES
+ *   -maxMoves n      truncate games after n moves, PSO.MAX_MOVES
+ *   -threads n       threads playing the games, default all cores
+ *   -targets a,b     target scores, default 1000,10000,100000
+ *   -out prefix      report files prefix.csv and prefix.json, default optimizer-bench
+ * A config is a name and optional parameters, name:key=value,key=value
+ *   pso:particles=161,inertia=0.63,social=2.64,cognitive=1.93
+ *   ce:samples=100,elite=0.1
+ *   cma:population=10,sigma=5
+ * The default configs are pso, ce and cma with their default parameters
+ */
+public class OptimizerBenchmark {
+    private static final long DEFAULT_SEED = 3243;
+    // the warmup runs play other games than the measured ones
+    private static final long WARMUP_SEED = 1;
+
+    private long moveBudget = 20000000;
+    private double cpuBudget = 0;
+    private long warmupMoves = 2000000;
+    private long[] seeds = {DEFAULT_SEED};
+    private int threads = Runtime.getRuntime().availableProcessors();
+    private int[] targets = {1000, 10000, 100000};
+    private String out = "optimizer-bench";
+    private List<String> configs = new ArrayList<>();
+
+    // One iteration of a run
+    private static class Point {
+        int iteration;
+        long games;
+        long moves;
+        double cpuSeconds;
+        double wallSeconds;
+        int best;
+    }
+
+    // One config trained on one seed
+    private static class Run {
+        String config;
+        long seed;
+        List<Point> curve = new ArrayList<>();
+        // the last point within the budget, null if the first iteration already overshot it
+        Point atBudget;
+    }
+
+    public static void main(String[] args) throws IOException {
+        OptimizerBenchmark benchmark = new OptimizerBenchmark();
+        benchmark.parse(args);
+        benchmark.runAll();
+    }
+
+    private void parse(String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-moves":
+                    moveBudget = Long.parseLong(args[++i]);
+                    break;
+                case "-cpu":
+                    cpuBudget = Double.parseDouble(args[++i]);
+                    break;
+                case "-warmup":
+                    warmupMoves = Long.parseLong(args[++i]);
+                    break;
+                case "-seeds":
+                    String[] seedList = args[++i].split(",");
+                    seeds = new long[seedList.length];
+                    for (int j = 0; j < seedList.length; j++) {
+                        seeds[j] = Long.parseLong(seedList[j]);
+                    }
+                    break;
+                case "-games":
+                    PSO.NUM_GAMES = Integer.parseInt(args[++i]);
+                    break;
+                case "-maxMoves":
+                    PSO.MAX_MOVES = Integer.parseInt(args[++i]);
+                    break;
+                case "-threads":
+                    threads = Integer.parseInt(args[++i]);
+                    break;
+                case "-targets":
+                    String[] targetList = args[++i].split(",");
+                    targets = new int[targetList.length];
+                    for (int j = 0; j < targetList.length; j++) {
+                        targets[j] = Integer.parseInt(targetList[j]);
+                    }
+                    break;
+                case "-out":
+                    out = args[++i];
+                    break;
+                default:
+                    configs.add(args[i]);
+            }
+        }
+        if (configs.isEmpty()) {
+            configs.add("pso");
+            configs.add("ce");
+            configs.add("cma");
+        }
+    }
+
+    private void runAll() throws IOException {
+        List<Run> runs = new ArrayList<>();
+        ExecutorService executor = Executors.newWorkStealingPool(threads);
+        if (warmupMoves > 0) {
+            for (String config : configs) {
+                run(config, WARMUP_SEED, executor, warmupMoves, 0);
+            }
+            System.out.println("Warmed up " + configs.size() + " configs for " + warmupMoves + " moves each");
+        }
+        for (String config : configs) {
+            for (long seed : seeds) {
+                Run run = run(config, seed, executor, moveBudget, cpuBudget);
+                runs.add(run);
+                Point last = run.curve.get(run.curve.size() - 1);
+                System.out.printf(Locale.ROOT, "%s seed %d: best %d within the budget, stopped after %d moves, "
+                        + "%d games, %.1f s%n", config, seed, best(run), last.moves, last.games, last.wallSeconds);
+            }
+        }
+        executor.shutdown();
+
+        writeCsv(runs);
+        writeJson(runs);
+        System.out.println("Wrote " + out + ".csv and " + out + ".json");
+    }
+
+    private Run run(String config, long seed, ExecutorService executor, long moveBudget, double cpuBudget) {
+        SeedSequence seedSequence = new SeedSequence(seed);
+        Optimizer optimizer = create(config, seedSequence);
+        GameEvaluator evaluator = new GameEvaluator(executor);
+        OptimizerTrainer trainer = new OptimizerTrainer(optimizer, evaluator, seedSequence);
+
+        Run run = new Run();
+        run.config = config;
+        run.seed = seed;
+        double cpuStart = cpuSeconds();
+        long wallStart = System.nanoTime();
+        for (int i = 0; ; i++) {
+            trainer.iterate(i);
+
+            Point point = new Point();
+            point.iteration = i;
+            point.games = evaluator.getGamesPlayed();
+            point.moves = evaluator.getMovesPlayed();
+            point.cpuSeconds = cpuSeconds() - cpuStart;
+            point.wallSeconds = (System.nanoTime() - wallStart) / 1e9;
+            point.best = optimizer.getBestScore();
+            run.curve.add(point);
+
+            if (point.moves <= moveBudget && (cpuBudget <= 0 || point.cpuSeconds <= cpuBudget)) {
+                run.atBudget = point;
+            }
+            if (point.moves >= moveBudget || (cpuBudget > 0 && point.cpuSeconds >= cpuBudget)) {
+                return run;
+            }
+        }
+    }
+
+    // The optimizer of a config, seeded so every config starts from the same randomness for a seed
+    private static Optimizer create(String config, SeedSequence seeds) {
+        String[] parts = config.split(":", 2);
+        String name = parts[0];
+        String[] parameters = parts.length > 1 ? parts[1].split(",") : new String[0];
+        SwarmRandom random = new SwarmRandom(seeds.swarmSeed());
+        switch (name) {
+            case "pso":
+                return new PSO((int) parameter(parameters, "particles", PSO.NUM_PARTICLES),
+                        parameter(parameters, "inertia", Particle.INERTIA),
+                        parameter(parameters, "social", Particle.SOCIAL_PARAMETER),
+                        parameter(parameters, "cognitive", Particle.COGNITIVE_PARAMETER), seeds);
+            case "ce":
+                return new CrossEntropyOptimizer(PlayerSkeleton.NUM_FEATURES,
+                        (int) parameter(parameters, "samples", CrossEntropyOptimizer.NUM_SAMPLES),
+                        parameter(parameters, "elite", CrossEntropyOptimizer.ELITE_FRACTION), random);
+            case "cma":
+                return new CmaEsOptimizer(PlayerSkeleton.NUM_FEATURES,
+                        (int) parameter(parameters, "population", 4 + (int) (3 * Math.log(PlayerSkeleton.NUM_FEATURES))),
+                        parameter(parameters, "sigma", CmaEsOptimizer.INITIAL_SIGMA), random);
+            default:
+                throw new IllegalArgumentException("Unknown optimizer: " + name);
+        }
+    }
+
+    private static double parameter(String[] parameters, String key, double defaultValue) {
+        for (String parameter : parameters) {
+            String[] keyValue = parameter.split("=", 2);
+            if (keyValue[0].equals(key)) {
+                return Double.parseDouble(keyValue[1]);
+            }
+        }
+        return defaultValue;
+    }
+
+    // CPU time of the whole process, NaN where the JVM does not report it
+    private static double cpuSeconds() {
+        OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof com.sun.management.OperatingSystemMXBean) {
+            return ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime() / 1e9;
+        }
+        return Double.NaN;
+    }
+
+    // The first point of the curve within the budget that reached the target, null if the run never did
+    private static Point reached(Run run, int target) {
+        for (Point point : run.curve) {
+            if (point.iteration > (run.atBudget == null ? -1 : run.atBudget.iteration)) {
+                return null;
+            }
+            if (point.best >= target) {
+                return point;
+            }
+        }
+        return null;
+    }
+
+    // The best score within the budget
+    private static int best(Run run) {
+        return run.atBudget == null ? 0 : run.atBudget.best;
+    }
+
+    private void writeCsv(List<Run> runs) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new FileWriter(out + ".csv"))) {
+            writer.println("config,seed,iteration,games,moves,cpu_seconds,wall_seconds,best,within_budget");
+            for (Run run : runs) {
+                for (Point point : run.curve) {
+                    boolean isWithinBudget = run.atBudget != null && point.iteration <= run.atBudget.iteration;
+                    writer.printf(Locale.ROOT, "\"%s\",%d,%d,%d,%d,%.3f,%.3f,%d,%b%n", run.config, run.seed,
+                            point.iteration, point.games, point.moves, point.cpuSeconds, point.wallSeconds, point.best,
+                            isWithinBudget);
+                }
+            }
+        }
+    }
+
+    private void writeJson(List<Run> runs) throws IOException {
+        try (PrintWriter writer = new PrintWriter(new FileWriter(out + ".json"))) {
+            writer.println("{");
+            writer.printf(Locale.ROOT, "  \"moveBudget\": %d,%n", moveBudget);
+            writer.printf(Locale.ROOT, "  \"cpuBudget\": %s,%n", number(cpuBudget));
+            writer.printf(Locale.ROOT, "  \"warmupMoves\": %d,%n", warmupMoves);
+            writer.printf(Locale.ROOT, "  \"games\": %d,%n", PSO.NUM_GAMES);
+            writer.printf(Locale.ROOT, "  \"maxMoves\": %d,%n", PSO.MAX_MOVES);
+            writer.printf(Locale.ROOT, "  \"threads\": %d,%n", threads);
+            writer.printf(Locale.ROOT, "  \"cores\": %d,%n", Runtime.getRuntime().availableProcessors());
+            writer.println("  \"runs\": [");
+            for (int r = 0; r < runs.size(); r++) {
+                Run run = runs.get(r);
+                Point last = run.curve.get(run.curve.size() - 1);
+                writer.println("    {");
+                writer.printf(Locale.ROOT, "      \"config\": \"%s\",%n", run.config);
+                writer.printf(Locale.ROOT, "      \"seed\": %d,%n", run.seed);
+                writer.printf(Locale.ROOT, "      \"iterations\": %d,%n", run.curve.size());
+                writer.printf(Locale.ROOT, "      \"games\": %d,%n", last.games);
+                writer.printf(Locale.ROOT, "      \"moves\": %d,%n", last.moves);
+                writer.printf(Locale.ROOT, "      \"cpuSeconds\": %s,%n", number(last.cpuSeconds));
+                writer.printf(Locale.ROOT, "      \"wallSeconds\": %s,%n", number(last.wallSeconds));
+                // share of the threads' time spent on the CPU
+                writer.printf(Locale.ROOT, "      \"utilization\": %s,%n",
+                        number(last.cpuSeconds / (last.wallSeconds * threads)));
+                writer.printf(Locale.ROOT, "      \"best\": %d,%n", best(run));
+                // what the last iteration spent past the budget, the best it found is not counted
+                writer.printf(Locale.ROOT, "      \"overshootMoves\": %d,%n", Math.max(0, last.moves - moveBudget));
+                writer.printf(Locale.ROOT, "      \"overshootCpuSeconds\": %s,%n",
+                        number(cpuBudget > 0 ? Math.max(0, last.cpuSeconds - cpuBudget) : 0));
+                writer.println("      \"targets\": [");
+                for (int t = 0; t < targets.length; t++) {
+                    Point point = reached(run, targets[t]);
+                    writer.printf(Locale.ROOT, "        {\"target\": %d, \"reached\": %b", targets[t], point != null);
+                    if (point != null) {
+                        writer.printf(Locale.ROOT, ", \"games\": %d, \"moves\": %d, \"cpuSeconds\": %s, "
+                                + "\"wallSeconds\": %s", point.games, point.moves, number(point.cpuSeconds),
+                                number(point.wallSeconds));
+                    }
+                    writer.println(t + 1 < targets.length ? "}," : "}");
+                }
+                writer.println("      ],");
+                writer.println("      \"curve\": [");
+                for (int p = 0; p < run.curve.size(); p++) {
+                    Point point = run.curve.get(p);
+                    writer.printf(Locale.ROOT, "        [%d, %d, %d]%s%n", point.moves, point.games, point.best,
+                            p + 1 < run.curve.size() ? "," : "");
+                }
+                writer.println("      ]");
+                writer.println(r + 1 < runs.size() ? "    }," : "    }");
+            }
+            writer.println("  ]");
+            writer.println("}");
+        }
+    }
+
+    // JSON has no NaN
+    private static String number(double value) {
+        return Double.isNaN(value) || Double.isInfinite(value) ? "null" : String.format(Locale.ROOT, "%.3f", value);
+    }
+}
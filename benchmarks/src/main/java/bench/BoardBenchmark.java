@@ -0,0 +1,55 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-board costs of the player on the corpus boards: copying a State, evaluating a candidate board
+ * and choosing a move
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BoardBenchmark {
+
+    @Param({TetrisFixture.LOW, TetrisFixture.MID, TetrisFixture.HIGH})
+    public String heights;
+
+    private TetrisFixture fixture;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        fixture = TetrisFixture.load();
+        fixture.setUp(BenchmarkMain.SEED, heights);
+    }
+
+    @Benchmark
+    public Object stateCopy() {
+        return fixture.copyState();
+    }
+
+    @Benchmark
+    public double fusedEvaluate() {
+        return fixture.evaluate();
+    }
+
+    @Benchmark
+    public int pickMove() {
+        return fixture.pickMove();
+    }
+}
@@ -0,0 +1,50 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Feature.run of every feature, and of the mask kernel versions, on the corpus boards after the player's move
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FeatureBenchmark {
+
+    @Param({TetrisFixture.LOW, TetrisFixture.MID, TetrisFixture.HIGH})
+    public String heights;
+
+    @Param({"MaxHeightFeature", "RowsClearedFeature", "AvgHeightFeature", "HolesFeature",
+            "ColumnTransitionsFeature", "AbsoluteDiffFeature", "RowTransitionsFeature", "WellSumFeature",
+            "HolesMaskFeature", "ColumnTransitionsMaskFeature", "RowTransitionsMaskFeature", "WellSumMaskFeature"})
+    public String feature;
+
+    private TetrisFixture fixture;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        fixture = TetrisFixture.load();
+        fixture.setUp(BenchmarkMain.SEED, heights);
+        fixture.selectFeature(feature);
+    }
+
+    @Benchmark
+    public double run() {
+        return fixture.runFeature();
+    }
+}
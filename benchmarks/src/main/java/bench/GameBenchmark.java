@@ -0,0 +1,53 @@
+package bench;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole games: State.makeMove along a recorded game, and moves per second of a fixed seed game
+ * played by the shipped weights
+ */
+@State(Scope.Thread)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GameBenchmark {
+
+    private static final int MOVES_PER_INVOCATION = 1000;
+
+    private TetrisFixture fixture;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        fixture = TetrisFixture.load();
+        fixture.setUp(BenchmarkMain.SEED, TetrisFixture.LOW);
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int stateMakeMove() {
+        return fixture.stateMakeMove();
+    }
+
+    // the score is in moves per second
+    @Benchmark
+    @BenchmarkMode(Mode.Throughput)
+    @OutputTimeUnit(TimeUnit.SECONDS)
+    @OperationsPerInvocation(MOVES_PER_INVOCATION)
+    public int fullGame() {
+        return fixture.playMoves(MOVES_PER_INVOCATION);
+    }
+}
@@ -0,0 +1,46 @@
+package bench;
+
+/**
+ * The simulation lives in the default package, which JMH benchmark classes cannot import.
+ * The benchmarks drive it through this interface instead, implemented by BenchmarkFixture
+ * in the default package of this module
+ */
+public interface TetrisFixture {
+
+    // boards of the corpus, by the maximum column height of the board
+    String LOW = "low";
+    String MID = "mid";
+    String HIGH = "high";
+
+    // Samples the corpus of boards of the given heights from games seeded from seed
+    void setUp(long seed, String heights);
+
+    // Runs the named Feature class in runFeature
+    void selectFeature(String featureClass);
+
+    // State.makeMove, along a game recorded from the player so the boards are realistic
+    int stateMakeMove();
+
+    // new StateCopy(State) of the next corpus board
+    Object copyState();
+
+    // selected Feature.run on the next corpus board after the player's move
+    double runFeature();
+
+    // FusedEvaluator on the next corpus board after the player's move
+    double evaluate();
+
+    // PlayerSkeleton.pickMove on the next corpus board
+    int pickMove();
+
+    // plays the given number of moves of a fixed seed game with the shipped weights, returns rows cleared so far
+    int playMoves(int moves);
+
+    static TetrisFixture load() {
+        try {
+            return (TetrisFixture) Class.forName("BenchmarkFixture").newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("BenchmarkFixture is not on the classpath", e);
+        }
+    }
+}